@@ -2,6 +2,7 @@ package org.cclab;
 
 import java.io.Serializable;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.w3c.dom.NodeList;
 
@@ -33,14 +34,38 @@ public class Operation implements Serializable {
      * @param list the NodeList in XML.
      */
     public Operation(NodeList list) {
+        this(list, list.getLength());
+    }
+    
+    /**
+     * Construct a operation with the first nodes of a NodeList in XML, for
+     * messages having other fields after the operation.
+     * @param list the NodeList in XML.
+     * @param length the number of nodes of the operation.
+     */
+    public Operation(NodeList list, int length) {
         this.type = OperationType.valueOf(list.item(0).getTextContent());
         
         this.args = new LinkedHashMap<>();
-        for (int i = 1; i < list.getLength(); i++) {
+        for (int i = 1; i < length; i++) {
             args.put(list.item(i).getNodeName(), list.item(i).getTextContent());
         }
     }
 
+    /**
+     * Construct a operation with the names and values of its nodes, the
+     * first of which is the type.
+     * @param fields the nodes of the operation.
+     */
+    public Operation(List<Map.Entry<String, String>> fields) {
+        this.type = OperationType.valueOf(fields.get(0).getValue());
+        
+        this.args = new LinkedHashMap<>();
+        for (Map.Entry<String, String> field: fields.subList(1, fields.size())) {
+            args.put(field.getKey(), field.getValue());
+        }
+    }
+    
     public LinkedHashMap<String, String> toMap() {
         LinkedHashMap<String, String> map = new LinkedHashMap<>();
         
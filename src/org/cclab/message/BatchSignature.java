@@ -0,0 +1,163 @@
+package org.cclab.message;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.Base64;
+import javax.xml.parsers.ParserConfigurationException;
+import org.cclab.utility.HashFunction;
+import org.w3c.dom.Element;
+
+/**
+ * A compact signature shared by a batch of messages. The signer builds a
+ * binary hash tree over the signed digests of the messages, as
+ * {@link org.cclab.service.FileChunkTree} does over chunks, and signs only
+ * the root. A leaf is H(0x00 || digest) and a node is
+ * H(0x01 || left || right), so a node cannot be passed off as a message. Each message carries its index, the batch size, the sibling
+ * digests from its leaf up to the root, and the signature of the root:
+ * <pre>
+ * &lt;Signature Algorithm="SHA256withECDSA" Index="3" Size="8" Path="..."&gt;...&lt;/Signature&gt;
+ * </pre>
+ * Path and the signature value are in Base64.
+ * @author Scott
+ * @see BatchSigner
+ * @see BatchVerifier
+ */
+final class BatchSignature {
+    private static final String INDEX_NAME = "Index";
+    private static final String SIZE_NAME = "Size";
+    private static final String PATH_NAME = "Path";
+    private static final byte[] LEAF_PREFIX = {0};
+    
+    static final byte NODE_PREFIX = 1;
+    static final HashFunction HASH_FUNCTION = HashFunction.SHA256;
+    
+    /**
+     * The maximum number of messages in a batch.
+     */
+    static final int MAX_SIZE = 1 << 24;
+    
+    final SignatureAlgorithm algorithm;
+    final int index;
+    final int size;
+    final byte[] path;
+    final byte[] value;
+    
+    BatchSignature(SignatureAlgorithm algorithm, int index, int size, byte[] path, byte[] value) {
+        this.algorithm = algorithm;
+        this.index = index;
+        this.size = size;
+        this.path = path;
+        this.value = value;
+    }
+    
+    static boolean isBatchSignature(Element signature) {
+        return signature.hasAttribute(PATH_NAME);
+    }
+    
+    /**
+     * Read a batch signature from its element.
+     * @throws IllegalArgumentException if the element is malformed.
+     */
+    static BatchSignature of(Element signature) {
+        Base64.Decoder decoder = Base64.getDecoder();
+        
+        return new BatchSignature(XMLDocument.getCompactAlgorithm(signature),
+                                  Integer.parseInt(signature.getAttribute(INDEX_NAME)),
+                                  Integer.parseInt(signature.getAttribute(SIZE_NAME)),
+                                  decoder.decode(signature.getAttribute(PATH_NAME)),
+                                  XMLDocument.getCompactValue(signature));
+    }
+    
+    /**
+     * Create the signature element in a document of its own.
+     * @throws ParserConfigurationException
+     */
+    Element toElement() throws ParserConfigurationException {
+        Element element = XMLDocument.createCompactSignature(algorithm, value);
+        
+        element.setAttribute(INDEX_NAME, Integer.toString(index));
+        element.setAttribute(SIZE_NAME, Integer.toString(size));
+        element.setAttribute(PATH_NAME, Base64.getEncoder().encodeToString(path));
+        
+        return element;
+    }
+    
+    /**
+     * Returns the number of leaves of the tree of a batch, which is the
+     * smallest power of two not less than the batch size.
+     */
+    static int leafOffset(int size) {
+        int offset = 1;
+        
+        while (offset < size) {
+            offset <<= 1;
+        }
+        
+        return offset;
+    }
+    
+    /**
+     * Returns the leaf of the signed digest of a message.
+     */
+    static byte[] leafOf(byte[] digest) {
+        return HASH_FUNCTION.hash(LEAF_PREFIX, digest);
+    }
+    
+    /**
+     * Returns the bytes covered by the signature of a root. The prefix keeps
+     * them apart from the bytes of a single message.
+     */
+    static byte[] getSignedBytes(byte[] root, int size) {
+        BinaryWriter writer = new BinaryWriter();
+        
+        writer.writeString(BatchSignature.class.getName());
+        writer.writeInt(size);
+        writer.writeBytes(root);
+        
+        return writer.toByteArray();
+    }
+    
+    /**
+     * Evaluate the root digest from the signed digest of the message.
+     * @param signedDigest the signed digest of the message.
+     * @return the root digest, or null if the path does not fit the index and
+     *         the size.
+     */
+    byte[] evalRoot(byte[] signedDigest) {
+        if (size <= 0 || size > MAX_SIZE || index < 0 || index >= size) {
+            return null;
+        }
+        
+        int leafOffset = leafOffset(size);
+        int depth = Integer.numberOfTrailingZeros(leafOffset);
+        
+        if (path.length != depth * HashFunction.DIGEST_LENGTH) {
+            return null;
+        }
+        
+        byte[] digest = leafOf(signedDigest);
+        byte[] pair = new byte[2 * HashFunction.DIGEST_LENGTH];
+        
+        for (int node = leafOffset + index, s = 0; node > 1; node >>= 1, s += HashFunction.DIGEST_LENGTH) {
+            int own = node % 2 == 0 ? 0 : HashFunction.DIGEST_LENGTH;
+            
+            System.arraycopy(digest, 0, pair, own, HashFunction.DIGEST_LENGTH);
+            System.arraycopy(path, s, pair, HashFunction.DIGEST_LENGTH - own, HashFunction.DIGEST_LENGTH);
+            HASH_FUNCTION.hashPairs(NODE_PREFIX, pair, 0, digest, 0, 1);
+        }
+        
+        return digest;
+    }
+    
+    /**
+     * Verify the signature of the root without caching it.
+     * @param publicKey the public key of the signer.
+     * @param signedDigest the signed digest of the message.
+     * @throws InvalidKeyException if the key does not fit the algorithm.
+     */
+    boolean verify(PublicKey publicKey, byte[] signedDigest) throws InvalidKeyException {
+        byte[] root = evalRoot(signedDigest);
+        
+        return root != null && algorithm.verify(publicKey, value, getSignedBytes(root, size));
+    }
+}
@@ -0,0 +1,277 @@
+package org.cclab.message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.cclab.utility.HashFunction;
+
+/**
+ * Sign messages in batches with one signature per batch, see
+ * {@link BatchSignature}. Submitted messages are collected until the batch
+ * is full or the window since the first of them elapses, then the batch is
+ * signed by a background thread.
+ *
+ * A submitted message must not be used until its future completes.
+ * @author Scott
+ * @see BatchVerifier
+ */
+public class BatchSigner implements Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_WINDOW_MILLIS = 5;
+    
+    private final PrivateKey privateKey;
+    private final SignatureAlgorithm algorithm;
+    private final int maxBatchSize;
+    private final long windowMillis;
+    private final ScheduledExecutorService executor;
+    
+    private List<Pending<?>> pending;
+    private ScheduledFuture<?> flushTask;
+    
+    /**
+     * Construct a batch signer.
+     * @param privateKey the private key.
+     * @param algorithm the signature algorithm fitting the key.
+     * @param maxBatchSize the maximum number of messages in a batch.
+     * @param windowMillis the maximum time a message waits for its batch.
+     * @throws IllegalArgumentException if batch size is out of range.
+     */
+    public BatchSigner(PrivateKey privateKey, SignatureAlgorithm algorithm,
+                       int maxBatchSize, long windowMillis) {
+        if (maxBatchSize <= 0 || maxBatchSize > BatchSignature.MAX_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + BatchSignature.MAX_SIZE + ".");
+        }
+        
+        this.privateKey = privateKey;
+        this.algorithm = algorithm;
+        this.maxBatchSize = maxBatchSize;
+        this.windowMillis = windowMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batch-signer");
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        this.pending = new ArrayList<>(maxBatchSize);
+    }
+    
+    /**
+     * Construct a batch signer with the default algorithm of the key,
+     * default batch size and window.
+     */
+    public BatchSigner(PrivateKey privateKey) {
+        this(privateKey, SignatureAlgorithm.of(privateKey), DEFAULT_BATCH_SIZE, DEFAULT_WINDOW_MILLIS);
+    }
+    
+    /**
+     * Submit a message to be signed in the next batch.
+     * @param doc the message, which must be neither embedded nor signed.
+     * @return the future completed with the signed message.
+     */
+    public <T extends XMLDocument> CompletableFuture<T> submit(T doc) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        
+        if (doc.isEmbedded()) {
+            future.completeExceptionally(new IllegalArgumentException("cannot sign an embedded document"));
+            
+            return future;
+        } else if (doc.getEnvelopedSignature() != null) {
+            future.completeExceptionally(new IllegalArgumentException("cannot sign a signed document"));
+            
+            return future;
+        }
+        
+        List<Pending<?>> batch;
+        
+        synchronized (this) {
+            if (executor.isShutdown()) {
+                future.completeExceptionally(new RejectedExecutionException("batch signer is closed"));
+                
+                return future;
+            }
+            
+            pending.add(new Pending<>(doc, future));
+            
+            batch = pending.size() >= maxBatchSize ? takePending() : null;
+            
+            if (pending.size() == 1) {
+                flushTask = executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        if (batch != null) {
+            try {
+                executor.execute(() -> sign(batch));
+            } catch (RejectedExecutionException ex) {
+                // closed meanwhile
+                sign(batch);
+            }
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Sign the collected messages now, without waiting for the window.
+     */
+    public void flush() {
+        List<Pending<?>> batch;
+        
+        synchronized (this) {
+            batch = takePending();
+        }
+        
+        if (!batch.isEmpty()) {
+            sign(batch);
+        }
+    }
+    
+    private List<Pending<?>> takePending() {
+        List<Pending<?>> batch = pending;
+        
+        pending = new ArrayList<>(maxBatchSize);
+        
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        
+        return batch;
+    }
+    
+    private void sign(List<Pending<?>> batch) {
+        List<XMLDocument> docs = new ArrayList<>(batch.size());
+        
+        for (Pending<?> p: batch) {
+            docs.add(p.doc);
+        }
+        
+        try {
+            sign(privateKey, algorithm, docs);
+            
+            for (Pending<?> p: batch) {
+                p.complete();
+            }
+        } catch (Exception ex) {
+            for (Pending<?> p: batch) {
+                p.future.completeExceptionally(ex);
+            }
+        }
+    }
+    
+    /**
+     * Sign the messages with one signature over the root of their tree.
+     * @param privateKey the private key.
+     * @param algorithm the signature algorithm fitting the key.
+     * @param docs the messages, none of which may be embedded or signed.
+     * @throws IllegalArgumentException if a message is signed already.
+     * @throws InvalidKeyException if the key does not fit the algorithm.
+     * @throws SignatureException
+     * @throws IOException raised if a nested signature cannot be serialized.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    public static void sign(PrivateKey privateKey, SignatureAlgorithm algorithm,
+                            List<? extends XMLDocument> docs)
+        throws InvalidKeyException,
+               SignatureException,
+               IOException,
+               TransformerException {
+        int size = docs.size();
+        
+        if (size == 0) {
+            return;
+        } else if (size > BatchSignature.MAX_SIZE) {
+            throw new IllegalArgumentException("Too many messages in a batch: " + size);
+        }
+        
+        for (XMLDocument doc: docs) {
+            if (doc.getEnvelopedSignature() != null) {
+                throw new IllegalArgumentException("cannot sign a signed document");
+            }
+        }
+        
+        int leafOffset = BatchSignature.leafOffset(size);
+        int depth = Integer.numberOfTrailingZeros(leafOffset);
+        byte[] nodes = new byte[leafOffset * 2 * HashFunction.DIGEST_LENGTH];
+        
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(BatchSignature.leafOf(docs.get(i).getSignedDigest()), 0,
+                             nodes, (leafOffset + i) * HashFunction.DIGEST_LENGTH,
+                             HashFunction.DIGEST_LENGTH);
+        }
+        
+        // level [lo, 2lo) is hashed from its children [2lo, 4lo)
+        for (int lo = leafOffset >> 1; lo > 0; lo >>= 1) {
+            BatchSignature.HASH_FUNCTION.hashPairs(BatchSignature.NODE_PREFIX,
+                                                   nodes, 2 * lo * HashFunction.DIGEST_LENGTH,
+                                                   nodes, lo * HashFunction.DIGEST_LENGTH, lo);
+        }
+        
+        byte[] root = new byte[HashFunction.DIGEST_LENGTH];
+        
+        System.arraycopy(nodes, HashFunction.DIGEST_LENGTH, root, 0, HashFunction.DIGEST_LENGTH);
+        
+        byte[] value = algorithm.sign(privateKey, BatchSignature.getSignedBytes(root, size));
+        
+        for (int i = 0; i < size; i++) {
+            byte[] path = new byte[depth * HashFunction.DIGEST_LENGTH];
+            int s = 0;
+            
+            for (int node = leafOffset + i; node > 1; node >>= 1, s += HashFunction.DIGEST_LENGTH) {
+                System.arraycopy(nodes, (node ^ 1) * HashFunction.DIGEST_LENGTH,
+                                 path, s, HashFunction.DIGEST_LENGTH);
+            }
+            
+            try {
+                docs.get(i).attachSignature(new BatchSignature(algorithm, i, size, path, value).toElement());
+            } catch (ParserConfigurationException ex) {
+                throw new TransformerException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Sign the collected messages and stop the background thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            executor.shutdown();
+        }
+        
+        flush();
+        
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static class Pending<T extends XMLDocument> {
+        final T doc;
+        final CompletableFuture<T> future;
+        
+        Pending(T doc, CompletableFuture<T> future) {
+            this.doc = doc;
+            this.future = future;
+        }
+        
+        void complete() {
+            future.complete(doc);
+        }
+    }
+}
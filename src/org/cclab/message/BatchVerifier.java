@@ -0,0 +1,104 @@
+package org.cclab.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.w3c.dom.Element;
+
+/**
+ * Verify messages signed by one signer, remembering the roots of batch
+ * signatures which have been verified. A message whose batch root is known
+ * is verified by hashing its path only, so verifying many messages of the
+ * same batch costs one signature check.
+ *
+ * Messages with another kind of signature are verified by
+ * {@link XMLDocument#verifyDigitalSignature(PublicKey)}. It is thread-safe.
+ * @author Scott
+ * @see BatchSigner
+ */
+public class BatchVerifier {
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    
+    private static final Logger LOGGER = Logger.getLogger(BatchVerifier.class.getName());
+    
+    private final PublicKey publicKey;
+    private final Set<ByteBuffer> verifiedRoots;
+    
+    /**
+     * Construct a verifier of the signer.
+     * @param publicKey the public key of the signer.
+     * @param cacheSize the maximum number of remembered roots, the least
+     *        recently used of which are forgotten first.
+     */
+    public BatchVerifier(PublicKey publicKey, int cacheSize) {
+        this.publicKey = publicKey;
+        this.verifiedRoots = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > cacheSize;
+                }
+            }));
+    }
+    
+    public BatchVerifier(PublicKey publicKey) {
+        this(publicKey, DEFAULT_CACHE_SIZE);
+    }
+    
+    /**
+     * Verify the signature of the message.
+     * @param doc the message.
+     * @return true if the signature is valid.
+     */
+    public boolean verify(XMLDocument doc) {
+        Element signature = doc.getEnvelopedSignature();
+        
+        if (signature == null || !BatchSignature.isBatchSignature(signature)) {
+            return doc.verifyDigitalSignature(publicKey);
+        }
+        
+        try {
+            BatchSignature batch = BatchSignature.of(signature);
+            byte[] root = batch.evalRoot(doc.getSignedDigest());
+            
+            if (root == null) {
+                return false;
+            }
+            
+            ByteBuffer signedRoot = ByteBuffer.wrap(BatchSignature.getSignedBytes(root, batch.size));
+            
+            if (verifiedRoots.contains(signedRoot)) {
+                return true;
+            }
+            
+            if (!batch.algorithm.verify(publicKey, batch.value, signedRoot.array())) {
+                return false;
+            }
+            
+            verifiedRoots.add(signedRoot);
+            
+            return true;
+        } catch (IllegalArgumentException |
+                 IllegalStateException |
+                 InvalidKeyException |
+                 IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the number of remembered roots.
+     */
+    public int getCachedRootCount() {
+        return verifiedRoots.size();
+    }
+}
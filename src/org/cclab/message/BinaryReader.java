@@ -0,0 +1,258 @@
+package org.cclab.message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import org.cclab.Operation;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * Decode messages in the compact binary format. Messages are decoded
+ * without a DOM, as the ones read through StAX, so they can be converted to
+ * XML by {@link XMLDocument#toXMLString()}.
+ * @author Scott
+ * @see BinaryWriter
+ */
+public class BinaryReader {
+    /**
+     * Reads a message body and its signature.
+     * @param <T> type of the message.
+     */
+    public interface Parser<T extends XMLDocument> {
+        T read(BinaryReader reader) throws IOException;
+    }
+    
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private XMLDocument.Nesting lastNesting;
+    
+    private BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+    
+    /**
+     * Create a reader of a message, checking its version byte.
+     * @param bytes the encoded message.
+     * @throws IOException if the version is not supported.
+     */
+    public static BinaryReader of(byte[] bytes) throws IOException {
+        return of(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Create a reader of a message in a part of the array, checking its
+     * version byte.
+     * @throws IOException if the version is not supported.
+     */
+    public static BinaryReader of(byte[] bytes, int offset, int length) throws IOException {
+        BinaryReader reader = new BinaryReader(bytes, offset, length);
+        byte version = reader.readByte();
+        
+        if (version != BinaryWriter.VERSION) {
+            throw new StreamCorruptedException("Unsupported binary format version: " + version);
+        }
+        
+        return reader;
+    }
+    
+    /**
+     * Decode a whole message.
+     * @param bytes the encoded message.
+     * @param parser the reader of the message.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static <T extends XMLDocument> T readDocument(byte[] bytes, Parser<T> parser) throws IOException {
+        BinaryReader reader = of(bytes);
+        T doc = parser.read(reader);
+        
+        reader.end();
+        
+        return doc;
+    }
+    
+    public byte readByte() throws IOException {
+        require(1);
+        
+        return buffer[position++];
+    }
+    
+    public int readInt() throws IOException {
+        require(4);
+        
+        int value = ((buffer[position] & 0xff) << 24)
+                  | ((buffer[position + 1] & 0xff) << 16)
+                  | ((buffer[position + 2] & 0xff) << 8)
+                  | (buffer[position + 3] & 0xff);
+        
+        position += 4;
+        
+        return value;
+    }
+    
+    public String readString() throws IOException {
+        int length = readLength();
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        
+        position += length;
+        
+        return value;
+    }
+    
+    public byte[] readBytes() throws IOException {
+        int length = readLength();
+        byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+        
+        position += length;
+        
+        return value;
+    }
+    
+    /**
+     * Read names and values of nodes.
+     * @throws IOException
+     */
+    public List<Map.Entry<String, String>> readFields() throws IOException {
+        int size = readLength();
+        List<Map.Entry<String, String>> fields = new ArrayList<>(size);
+        
+        for (int i = 0; i < size; i++) {
+            String name = readString();
+            
+            fields.add(new AbstractMap.SimpleImmutableEntry<>(name, readString()));
+        }
+        
+        return fields;
+    }
+    
+    public Operation readOperation() throws IOException {
+        List<Map.Entry<String, String>> fields = readFields();
+        
+        if (fields.isEmpty()) {
+            throw new StreamCorruptedException("Operation without type");
+        }
+        
+        try {
+            return new Operation(fields);
+        } catch (IllegalArgumentException ex) {
+            throw new StreamCorruptedException("Unknown operation type: " + fields.get(0).getValue());
+        }
+    }
+    
+    /**
+     * Read a nested message. The form it is nested in XML is returned by
+     * {@link #getLastNesting()}.
+     * @param parser the reader of the nested message.
+     * @throws IOException if the nested message is malformed.
+     */
+    public <T extends XMLDocument> T readNested(Parser<T> parser) throws IOException {
+        byte nesting = readByte();
+        
+        if (nesting < 0 || nesting >= XMLDocument.Nesting.values().length) {
+            throw new StreamCorruptedException("Unknown nesting: " + nesting);
+        }
+        
+        int length = readLength();
+        int end = position + length;
+        int outerLimit = limit;
+        
+        limit = end;
+        
+        T nested = parser.read(this);
+        
+        if (position != end) {
+            throw new StreamCorruptedException("Nested message has " + (end - position) + " bytes left");
+        }
+        
+        limit = outerLimit;
+        lastNesting = XMLDocument.Nesting.values()[nesting];
+        
+        return nested;
+    }
+    
+    /**
+     * Returns the form of the last nested message.
+     */
+    public XMLDocument.Nesting getLastNesting() {
+        return lastNesting;
+    }
+    
+    /**
+     * Read the signature which ends a message.
+     * @return the signature element, or null if the message is not signed.
+     * @throws IOException if the signature is malformed.
+     */
+    public Element readSignature() throws IOException {
+        byte type = readByte();
+        
+        switch (type) {
+            case BinaryWriter.NO_SIGNATURE:
+                return null;
+            case BinaryWriter.XML_SIGNATURE:
+                try {
+                    return XMLDocument.parse(readString()).getDocumentElement();
+                } catch (ParserConfigurationException | SAXException ex) {
+                    throw new StreamCorruptedException("Malformed signature: " + ex.getMessage());
+                }
+            case BinaryWriter.COMPACT_SIGNATURE:
+                try {
+                    SignatureAlgorithm algorithm = SignatureAlgorithm.valueOf(readByte());
+                    
+                    return XMLDocument.createCompactSignature(algorithm, readBytes());
+                } catch (IllegalArgumentException | ParserConfigurationException ex) {
+                    throw new StreamCorruptedException("Malformed signature: " + ex.getMessage());
+                }
+            case BinaryWriter.BATCH_SIGNATURE:
+                try {
+                    SignatureAlgorithm algorithm = SignatureAlgorithm.valueOf(readByte());
+                    int index = readInt();
+                    int size = readInt();
+                    byte[] path = readBytes();
+                    
+                    return new BatchSignature(algorithm, index, size, path, readBytes()).toElement();
+                } catch (IllegalArgumentException | ParserConfigurationException ex) {
+                    throw new StreamCorruptedException("Malformed signature: " + ex.getMessage());
+                }
+            default:
+                throw new StreamCorruptedException("Unknown signature type: " + type);
+        }
+    }
+    
+    /**
+     * Check that the whole message is read.
+     * @throws IOException if there are bytes left.
+     */
+    public void end() throws IOException {
+        if (position != limit) {
+            throw new StreamCorruptedException("Message has " + (limit - position) + " bytes left");
+        }
+    }
+    
+    private int readLength() throws IOException {
+        int length = readInt();
+        
+        if (length < 0) {
+            throw new StreamCorruptedException("Negative length: " + length);
+        }
+        
+        require(length);
+        
+        return length;
+    }
+    
+    private void require(int length) throws IOException {
+        if (limit - position < length) {
+            throw new EOFException("Need " + length + " bytes but " + (limit - position) + " left");
+        }
+    }
+}
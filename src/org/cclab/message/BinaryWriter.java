@@ -0,0 +1,210 @@
+package org.cclab.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+import org.cclab.Operation;
+import org.w3c.dom.Element;
+
+/**
+ * Encode messages in the compact binary format. Numbers are big-endian.
+ * <pre>
+ * message   = version:u8 body signature
+ * string    = length:u32 UTF-8 bytes
+ * int       = i32
+ * fields    = count:u32 (name:string value:string)*
+ * operation = fields, the first of which is the type
+ * nested    = nesting:u8 length:u32 body signature
+ * signature = 0x00
+ *           | 0x01 XML of the XML-DSig Signature element:string
+ *           | 0x02 algorithm:u8 value:bytes
+ *           | 0x03 algorithm:u8 index:u32 size:u32 path:bytes value:bytes
+ * bytes     = length:u32 bytes
+ * </pre>
+ * The body of a message is its fields in the same order as in XML, without
+ * names, except for those of operation arguments. The canonical form of a
+ * message is its encoding as if it were not signed, so it does not change
+ * when the message is signed. Signatures of nested messages are kept.
+ * @author Scott
+ * @see BinaryReader
+ */
+public class BinaryWriter {
+    /**
+     * Version of the binary format.
+     */
+    public static final byte VERSION = 1;
+    
+    static final byte NO_SIGNATURE = 0;
+    static final byte XML_SIGNATURE = 1;
+    static final byte COMPACT_SIGNATURE = 2;
+    static final byte BATCH_SIGNATURE = 3;
+    
+    private static final int INITIAL_CAPACITY = 256;
+    private static final String SERIALIZED_KEY = BinaryWriter.class.getName() + ".xml";
+    
+    private byte[] buffer;
+    private int count;
+    
+    public BinaryWriter() {
+        buffer = new byte[INITIAL_CAPACITY];
+    }
+    
+    /**
+     * Write a message with the version byte.
+     * @param doc the message.
+     * @param signed false to write the canonical form, which leaves the
+     *        signature of the message out.
+     * @throws IOException if the signature cannot be serialized.
+     */
+    public void writeDocument(XMLDocument doc, boolean signed) throws IOException {
+        writeByte(VERSION);
+        doc.writeBinary(this);
+        
+        writeSignature(signed ? doc.getEnvelopedSignature() : null);
+    }
+    
+    public void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[count++] = value;
+    }
+    
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        putInt(count, value);
+        count += 4;
+    }
+    
+    public void writeString(String value) {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public void writeBytes(byte[] bytes) {
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+    /**
+     * Write names and values of nodes.
+     * @param fields the nodes.
+     */
+    public void writeFields(Map<String, String> fields) {
+        writeInt(fields.size());
+        
+        for (Map.Entry<String, String> field: fields.entrySet()) {
+            writeString(field.getKey());
+            writeString(field.getValue());
+        }
+    }
+    
+    public void writeOperation(Operation operation) {
+        writeFields(operation.toMap());
+    }
+    
+    /**
+     * Write a nested message with its signature.
+     * @param doc the nested message.
+     * @param nesting how the message is nested in XML, which is kept so that
+     *        the XML form can be restored.
+     * @throws IOException if the signature cannot be serialized.
+     */
+    public void writeNested(XMLDocument doc, XMLDocument.Nesting nesting) throws IOException {
+        writeByte((byte) nesting.ordinal());
+        
+        int lengthOffset = count;
+        
+        writeInt(0);
+        doc.writeBinary(this);
+        writeSignature(doc.getEnvelopedSignature());
+        putInt(lengthOffset, count - lengthOffset - 4);
+    }
+    
+    /**
+     * Write a signature element, or its absence.
+     * @param signature the signature, or null.
+     * @throws IOException if the signature is malformed.
+     */
+    void writeSignature(Element signature) throws IOException {
+        if (signature == null) {
+            writeByte(NO_SIGNATURE);
+        } else if (BatchSignature.isBatchSignature(signature)) {
+            try {
+                BatchSignature batch = BatchSignature.of(signature);
+                
+                writeByte(BATCH_SIGNATURE);
+                writeByte(batch.algorithm.id);
+                writeInt(batch.index);
+                writeInt(batch.size);
+                writeBytes(batch.path);
+                writeBytes(batch.value);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Malformed batch signature", ex);
+            }
+        } else if (XMLDocument.isCompactSignature(signature)) {
+            try {
+                writeByte(COMPACT_SIGNATURE);
+                writeByte(XMLDocument.getCompactAlgorithm(signature).id);
+                writeBytes(XMLDocument.getCompactValue(signature));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Malformed compact signature", ex);
+            }
+        } else {
+            writeByte(XML_SIGNATURE);
+            writeBytes(serialize(signature));
+        }
+    }
+    
+    /**
+     * Returns the UTF-8 XML of a XML-DSig signature. It is kept in the
+     * element, since a signed message is encoded again whenever it is
+     * nested or signed, and the signature does not change once created.
+     */
+    private static byte[] serialize(Element signature) throws IOException {
+        byte[] bytes = (byte[]) signature.getUserData(SERIALIZED_KEY);
+        
+        if (bytes == null) {
+            StringWriter xml = new StringWriter();
+            
+            try {
+                MessageWriter.of(xml).writeElement(signature);
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex);
+            }
+            
+            bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+            signature.setUserData(SERIALIZED_KEY, bytes, null);
+        }
+        
+        return bytes;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+    
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+    
+    private void putInt(int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+    
+    private void ensureCapacity(int length) {
+        if (count + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+    }
+}
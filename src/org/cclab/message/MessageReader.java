@@ -0,0 +1,359 @@
+package org.cclab.message;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Read messages through StAX without building a DOM. Only the enveloped
+ * signature of a message, if any, is copied into a DOM so that it can be
+ * verified later.
+ *
+ * A message is read by moving to its root with {@link #start()}, reading
+ * its fields in order, and checking there is nothing left with
+ * {@link #end()}.
+ * @author Scott
+ */
+public class MessageReader {
+    /**
+     * Reads a message from the reader positioned at its root element.
+     * @param <T> type of the message.
+     */
+    public interface Parser<T extends XMLDocument> {
+        T read(MessageReader reader) throws XMLStreamException;
+    }
+    
+    private static final String SIGNATURE_NAME = "Signature";
+    
+    private static final XMLInputFactory InputFactory;
+    private static final DocumentBuilderFactory SignatureFactory;
+    
+    private final XMLStreamReader reader;
+    private XMLDocument.Nesting lastNesting;
+    private Element signature;
+    
+    static {
+        InputFactory = XMLInputFactory.newInstance();
+        InputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        InputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        SignatureFactory = DocumentBuilderFactory.newInstance();
+        SignatureFactory.setNamespaceAware(true);
+    }
+    
+    private MessageReader(XMLStreamReader reader) {
+        this.reader = reader;
+    }
+    
+    /**
+     * Create a reader from an input stream.
+     * @param in the input stream, which is not closed by the reader.
+     * @throws XMLStreamException
+     */
+    public static MessageReader of(InputStream in) throws XMLStreamException {
+        return new MessageReader(InputFactory.createXMLStreamReader(in));
+    }
+    
+    /**
+     * Create a reader from a XML string.
+     * @param str the XML string.
+     * @throws XMLStreamException
+     */
+    public static MessageReader of(String str) throws XMLStreamException {
+        return new MessageReader(InputFactory.createXMLStreamReader(new StringReader(str)));
+    }
+    
+    /**
+     * Move to the root element of a message.
+     * @return name of the root element.
+     * @throws XMLStreamException
+     */
+    public String start() throws XMLStreamException {
+        if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            reader.nextTag();
+        }
+        
+        return reader.getLocalName();
+    }
+    
+    /**
+     * Move to the next node of message body. The enveloped signature is
+     * consumed and kept, see {@link #getSignature()}.
+     * @return false if there is no more node in the body.
+     * @throws XMLStreamException
+     */
+    public boolean nextField() throws XMLStreamException {
+        if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+            return false;
+        }
+        
+        if (SIGNATURE_NAME.equals(reader.getLocalName())) {
+            signature = readSignature();
+            
+            if (reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("Unexpected node after signature: " + reader.getLocalName(),
+                                             reader.getLocation());
+            }
+            
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Read the value of the next node of message body.
+     * @throws XMLStreamException if there is no more node.
+     */
+    public String readField() throws XMLStreamException {
+        requireField();
+        
+        return reader.getElementText();
+    }
+    
+    /**
+     * Read the names and values of all remaining nodes of message body.
+     * @throws XMLStreamException
+     */
+    public List<Map.Entry<String, String>> readFields() throws XMLStreamException {
+        List<Map.Entry<String, String>> fields = new ArrayList<>();
+        
+        signature = null;
+        
+        while (nextField()) {
+            String name = reader.getLocalName();
+            
+            fields.add(new AbstractMap.SimpleImmutableEntry<>(name, reader.getElementText()));
+        }
+        
+        return fields;
+    }
+    
+    /**
+     * Read the nested message in the next node of message body, either
+     * embedded or escaped. The form is returned by {@link #getLastNesting()}.
+     * @param parser the reader of the nested message.
+     * @throws XMLStreamException if there is no more node or it is empty.
+     */
+    public <T extends XMLDocument> T readNested(Parser<T> parser) throws XMLStreamException {
+        requireField();
+        
+        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+            T nested = parser.read(this);
+            
+            if (reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("Unexpected node after nested message: " + reader.getLocalName(),
+                                             reader.getLocation());
+            }
+            
+            lastNesting = XMLDocument.Nesting.EMBEDDED;
+            
+            return nested;
+        }
+        
+        StringBuilder text = new StringBuilder();
+        
+        while (reader.getEventType() != XMLStreamConstants.END_ELEMENT) {
+            if (reader.isCharacters()) {
+                text.append(reader.getText());
+            }
+            
+            reader.next();
+        }
+        
+        if (text.length() == 0) {
+            throw new XMLStreamException("Empty nested message", reader.getLocation());
+        }
+        
+        String escapedText = text.toString();
+        T nested = parser.read(MessageReader.of(escapedText));
+        
+        nested.escapedText = escapedText;
+        lastNesting = XMLDocument.Nesting.ESCAPED;
+        
+        return nested;
+    }
+    
+    /**
+     * Move to the next node of message body.
+     * @return name of the node, or null if there is no more node.
+     * @throws XMLStreamException
+     */
+    String nextFieldName() throws XMLStreamException {
+        return nextField() ? reader.getLocalName() : null;
+    }
+    
+    /**
+     * Read the text of the current node of message body, or move into the
+     * message embedded in it.
+     * @return the text, or null if the reader is at the root element of the
+     *         embedded message.
+     * @throws XMLStreamException
+     */
+    String readTextOrEnter() throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (reader.isStartElement()) {
+                return null;
+            } else if (reader.isCharacters()) {
+                text.append(reader.getText());
+            }
+        }
+        
+        return text.toString();
+    }
+    
+    /**
+     * Read the text of the current node of message body, or skip it if it
+     * holds an embedded message.
+     * @return the text, or null if the node holds an element.
+     * @throws XMLStreamException
+     */
+    String readTextOrSkip() throws XMLStreamException {
+        String text = readTextOrEnter();
+        
+        if (text == null) {
+            do {
+                if (reader.isStartElement()) {
+                    skipElement();
+                }
+            } while (reader.next() != XMLStreamConstants.END_ELEMENT);
+        }
+        
+        return text;
+    }
+    
+    /**
+     * Check that the message has no more node in its body.
+     * @throws XMLStreamException if there is a node left.
+     */
+    public void end() throws XMLStreamException {
+        signature = null;
+        
+        if (nextField()) {
+            throw new XMLStreamException("Unexpected node: " + reader.getLocalName(), reader.getLocation());
+        }
+    }
+    
+    /**
+     * Returns the form of the last nested message.
+     */
+    public XMLDocument.Nesting getLastNesting() {
+        return lastNesting;
+    }
+    
+    /**
+     * Returns the enveloped signature of the message being read, or null if
+     * it is not signed. Call it after {@link #end()} or
+     * {@link #readFields()}.
+     */
+    public Element getSignature() {
+        return signature;
+    }
+    
+    private void requireField() throws XMLStreamException {
+        if (!nextField()) {
+            throw new XMLStreamException("Missing node", reader.getLocation());
+        }
+    }
+    
+    /**
+     * Copy the signature element into a DOM of its own.
+     */
+    private Element readSignature() throws XMLStreamException {
+        Document doc;
+        
+        try {
+            synchronized (SignatureFactory) {
+                doc = SignatureFactory.newDocumentBuilder().newDocument();
+            }
+        } catch (ParserConfigurationException ex) {
+            throw new XMLStreamException(ex);
+        }
+        
+        Node parent = doc;
+        
+        for (int depth = 0;;) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element element = doc.createElementNS(reader.getNamespaceURI(), qualifiedName());
+                    
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        
+                        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                               prefix == null || prefix.isEmpty()
+                                                   ? XMLConstants.XMLNS_ATTRIBUTE
+                                                   : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                                               reader.getNamespaceURI(i));
+                    }
+                    
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                    
+                    parent.appendChild(element);
+                    parent = element;
+                    depth++;
+                    
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    
+                    if (--depth == 0) {
+                        return doc.getDocumentElement();
+                    }
+                    
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    parent.appendChild(doc.createTextNode(reader.getText()));
+                    
+                    break;
+                default:
+                    break;
+            }
+            
+            reader.next();
+        }
+    }
+    
+    /**
+     * Skip the current element and its descendants.
+     */
+    private void skipElement() throws XMLStreamException {
+        for (int depth = 1; depth > 0;) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+    
+    private String qualifiedName() {
+        String prefix = reader.getPrefix();
+        
+        return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+}
@@ -0,0 +1,262 @@
+package org.cclab.message;
+
+import java.io.StringWriter;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * The fixed element layout of a message class, whose tags are made once so
+ * that an unsigned message is rendered by appending them and its escaped
+ * values to a string, without a DOM or a stream writer. A class declares
+ * its template and fields as constants:
+ * <pre>
+ * private static final MessageTemplate TEMPLATE = new MessageTemplate("request");
+ * private static final MessageTemplate.Field CSN_FIELD = TEMPLATE.field("CSN");
+ * </pre>
+ * and renders its body with them in
+ * {@link XMLDocument#renderBody(MessageTemplate.Renderer)}. The output is
+ * identical to {@link MessageWriter}.
+ * @author Scott
+ */
+public final class MessageTemplate {
+    static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    
+    private final String startTag;
+    private final String endTag;
+    
+    /**
+     * Compile the template of a message.
+     * @param name name of root node of the message.
+     * @throws IllegalArgumentException if the name is not a XML name.
+     */
+    public MessageTemplate(String name) {
+        checkName(name);
+        
+        this.startTag = "<" + name + ">";
+        this.endTag = "</" + name + ">";
+    }
+    
+    /**
+     * Compile a node of message body.
+     * @param key node name.
+     * @throws IllegalArgumentException if the name is not a XML name.
+     */
+    public Field field(String key) {
+        return new Field(key);
+    }
+    
+    /**
+     * A node of message body with its tags.
+     */
+    public static final class Field {
+        private final String startTag;
+        private final String endTag;
+        private final String emptyTag;
+        
+        private Field(String key) {
+            checkName(key);
+            
+            this.startTag = "<" + key + ">";
+            this.endTag = "</" + key + ">";
+            this.emptyTag = "<" + key + "/>";
+        }
+    }
+    
+    /**
+     * Appends messages to a string by the templates of their classes.
+     */
+    public static final class Renderer {
+        private final StringBuilder out;
+        
+        Renderer(StringBuilder out) {
+            this.out = out;
+        }
+        
+        /**
+         * Render a message with the XML declaration.
+         * @param doc the message.
+         * @throws XMLStreamException
+         */
+        void renderDocument(XMLDocument doc) throws XMLStreamException {
+            out.append(DECLARATION);
+            renderMessage(doc);
+        }
+        
+        /**
+         * Render the root element of a message by its template, or through
+         * StAX if it has none or is signed.
+         * @param doc the message.
+         * @throws XMLStreamException
+         */
+        void renderMessage(XMLDocument doc) throws XMLStreamException {
+            MessageTemplate template = doc.getTemplate();
+            
+            if (template == null || !doc.isRenderable()) {
+                StringWriter writer = new StringWriter();
+                
+                MessageWriter.of(writer).writeMessage(doc);
+                out.append(writer.getBuffer());
+                
+                return;
+            }
+            
+            out.append(template.startTag);
+            doc.renderBody(this);
+            out.append(template.endTag);
+        }
+        
+        /**
+         * Write one node of message body.
+         * @param field the node.
+         * @param value node value.
+         */
+        public void writeField(Field field, String value) {
+            if (value.isEmpty()) {
+                out.append(field.emptyTag);
+            } else {
+                out.append(field.startTag);
+                writeText(value);
+                out.append(field.endTag);
+            }
+        }
+        
+        /**
+         * Write nodes of message body recursively, in the same way as
+         * {@link MessageWriter#writeFields(Map)}. Their names are not
+         * known in advance, so they are checked as they are written.
+         * @param fields the nodes. The value of Map can be a String or
+         *        another Map.
+         * @throws XMLStreamException raised if a name is not a XML name or
+         *         type of value is not String or Map.
+         */
+        public void writeFields(Map<String, ?> fields) throws XMLStreamException {
+            for (Map.Entry<String, ?> field: fields.entrySet()) {
+                String key = field.getKey();
+                Object value = field.getValue();
+                
+                if (!isName(key)) {
+                    throw new XMLStreamException("Invalid node name: " + key);
+                }
+                
+                if (value instanceof Map) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, ?> nested = (Map<String, ?>) value;
+                    
+                    out.append('<').append(key).append('>');
+                    writeFields(nested);
+                    out.append("</").append(key).append('>');
+                } else if (value instanceof String) {
+                    String text = (String) value;
+                    
+                    if (text.isEmpty()) {
+                        out.append('<').append(key).append("/>");
+                    } else {
+                        out.append('<').append(key).append('>');
+                        writeText(text);
+                        out.append("</").append(key).append('>');
+                    }
+                } else {
+                    throw new XMLStreamException(
+                        "Unknown node value type: " + value.getClass().getName());
+                }
+            }
+        }
+        
+        /**
+         * Write one nested message into message body.
+         * @param field the node.
+         * @param doc the nested message.
+         * @param nesting how the message is nested.
+         * @throws XMLStreamException
+         */
+        public void writeNested(Field field, XMLDocument doc, XMLDocument.Nesting nesting)
+            throws XMLStreamException {
+            if (nesting == XMLDocument.Nesting.EMBEDDED) {
+                out.append(field.startTag);
+                renderMessage(doc);
+                out.append(field.endTag);
+            } else if (doc.escapedText != null) {
+                writeField(field, doc.escapedText);
+            } else {
+                int start = out.length();
+                
+                renderDocument(doc);
+                
+                String nested = out.substring(start);
+                
+                out.setLength(start);
+                writeField(field, nested);
+            }
+        }
+        
+        /**
+         * Write text as {@link MessageWriter} does: markup characters are
+         * escaped, line feeds are dropped, and carriage returns, DEL and C1
+         * controls and supplementary characters are written as character
+         * references.
+         */
+        private void writeText(String text) {
+            int start = 0;
+            
+            for (int i = 0; i < text.length();) {
+                char c = text.charAt(i);
+                int next = i + 1;
+                String escaped;
+                
+                if (c == '&') {
+                    escaped = "&amp;";
+                } else if (c == '<') {
+                    escaped = "&lt;";
+                } else if (c == '>') {
+                    escaped = "&gt;";
+                } else if (c == '\n') {
+                    escaped = "";
+                } else if (c == '\r' || (c >= 0x7f && c <= 0x9f)) {
+                    escaped = "&#" + (int) c + ";";
+                } else if (Character.isHighSurrogate(c) && next < text.length()
+                           && Character.isLowSurrogate(text.charAt(next))) {
+                    escaped = "&#" + text.codePointAt(i) + ";";
+                    next++;
+                } else {
+                    i = next;
+                    
+                    continue;
+                }
+                
+                out.append(text, start, i).append(escaped);
+                
+                start = next;
+                i = next;
+            }
+            
+            out.append(text, start, text.length());
+        }
+    }
+    
+    private static void checkName(String name) {
+        if (!isName(name)) {
+            throw new IllegalArgumentException("Invalid node name: " + name);
+        }
+    }
+    
+    /**
+     * Returns true if the string is a XML name, which cannot break out of
+     * its tag.
+     */
+    private static boolean isName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            
+            if (!(Character.isLetter(c) || c == '_' || c == ':'
+                  || (i > 0 && (Character.isDigit(c) || c == '-' || c == '.')))) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+}
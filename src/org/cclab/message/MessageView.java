@@ -0,0 +1,261 @@
+package org.cclab.message;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A view of a serialized message which reads its fields on demand. The
+ * message is scanned through StAX only as far as the requested field, and a
+ * nested message is neither parsed nor constructed until it is asked for, so
+ * a router which needs the result of a response or the client of a request
+ * avoids building the whole chain of messages:
+ * <pre>
+ * MessageView ack = MessageView.of(xml);
+ * String clientID = ack.getNested("reply-response")
+ *                      .getNested("reply-response")
+ *                      .getNested("request")
+ *                      .getField("clientID");
+ * </pre>
+ * The fields passed over are kept, so reading them later does not scan
+ * again. A view of an embedded message goes on with the reader of its
+ * parent when the message is the field just found, and a nested message is
+ * either viewed, or read with the parser of its class, for example
+ * {@code getNested("request", Request::read)}.
+ *
+ * A view is not thread-safe, and it does not verify the signature; read the
+ * message with {@link #toMessage(MessageReader.Parser)} to do so.
+ * @author Scott
+ * @see MessageReader
+ */
+public class MessageView {
+    /**
+     * Opens a reader positioned at or before the root element of the
+     * message.
+     */
+    private interface Source {
+        MessageReader open() throws XMLStreamException;
+    }
+    
+    private final Source source;
+    private final List<String> names;
+    private final List<String> texts;
+    
+    private MessageReader scanner;
+    private String name;
+    private boolean complete;
+    
+    /*
+     * True if the scanner is at the start of the last field found, whose
+     * text is not read yet.
+     */
+    private boolean pending;
+    
+    private MessageView(Source source, MessageReader scanner) {
+        this.source = source;
+        this.names = new ArrayList<>();
+        this.texts = new ArrayList<>();
+        this.scanner = scanner;
+    }
+    
+    /**
+     * Create a view of a XML string.
+     * @param str the XML string.
+     */
+    public static MessageView of(String str) {
+        return new MessageView(() -> MessageReader.of(str), null);
+    }
+    
+    /**
+     * Create a view of a XML document in bytes.
+     * @param bytes the XML document.
+     */
+    public static MessageView of(byte[] bytes) {
+        return new MessageView(() -> MessageReader.of(new ByteArrayInputStream(bytes)), null);
+    }
+    
+    /**
+     * Returns the name of the root element of the message.
+     * @throws XMLStreamException
+     */
+    public String getName() throws XMLStreamException {
+        if (name == null) {
+            if (scanner == null) {
+                scanner = source.open();
+            }
+            
+            name = scanner.start();
+        }
+        
+        return name;
+    }
+    
+    /**
+     * Returns the value of a field. If there are fields of the same name,
+     * the first of them is returned.
+     * @param fieldName the name of the field.
+     * @return the value, or null if there is no such field.
+     * @throws XMLStreamException if the field holds an embedded message.
+     */
+    public String getField(String fieldName) throws XMLStreamException {
+        int index = indexOf(fieldName);
+        
+        if (index < 0) {
+            return null;
+        }
+        
+        readPending();
+        
+        if (texts.get(index) == null) {
+            throw new XMLStreamException("Field holds an embedded message: " + fieldName);
+        }
+        
+        return texts.get(index);
+    }
+    
+    /**
+     * Returns the names of all fields in order, which scans the whole
+     * message.
+     * @throws XMLStreamException
+     */
+    public List<String> getFieldNames() throws XMLStreamException {
+        indexOf(null);
+        
+        return Collections.unmodifiableList(names);
+    }
+    
+    /**
+     * Returns a view of the nested message in a field, either embedded or
+     * escaped.
+     * @param fieldName the name of the field.
+     * @return the view, or null if there is no such field.
+     * @throws XMLStreamException
+     */
+    public MessageView getNested(String fieldName) throws XMLStreamException {
+        int index = indexOf(fieldName);
+        
+        if (index < 0) {
+            return null;
+        }
+        
+        MessageReader nestedScanner = null;
+        
+        if (pending && index == names.size() - 1) {
+            pending = false;
+            texts.set(index, scanner.readTextOrEnter());
+            
+            if (texts.get(index) == null) {
+                // the scanner is at the nested message, which takes it over
+                nestedScanner = scanner;
+                scanner = null;
+            }
+        }
+        
+        String escapedText = texts.get(index);
+        
+        if (escapedText != null) {
+            return of(escapedText);
+        }
+        
+        return new MessageView(() -> {
+            MessageReader reader = openAt(index);
+            
+            reader.nextField();
+            
+            if (reader.readTextOrEnter() != null) {
+                throw new XMLStreamException("Missing nested message");
+            }
+            
+            return reader;
+        }, nestedScanner);
+    }
+    
+    /**
+     * Read the nested message in a field, either embedded or escaped.
+     * @param fieldName the name of the field.
+     * @param parser the reader of the nested message.
+     * @return the message, or null if there is no such field.
+     * @throws XMLStreamException
+     */
+    public <T extends XMLDocument> T getNested(String fieldName, MessageReader.Parser<T> parser)
+        throws XMLStreamException {
+        int index = indexOf(fieldName);
+        
+        return index < 0 ? null : openAt(index).readNested(parser);
+    }
+    
+    /**
+     * Read the whole message.
+     * @param parser the reader of the message, such as Response::read.
+     * @throws XMLStreamException
+     */
+    public <T extends XMLDocument> T toMessage(MessageReader.Parser<T> parser) throws XMLStreamException {
+        return parser.read(source.open());
+    }
+    
+    /**
+     * Returns the position of the first field of the name, scanning as far
+     * as it, or -1 if there is no such field.
+     */
+    private int indexOf(String fieldName) throws XMLStreamException {
+        int index = names.indexOf(fieldName);
+        
+        if (index >= 0 || complete) {
+            return index;
+        }
+        
+        getName();
+        
+        if (scanner == null) {
+            scanner = openAt(names.size());
+        }
+        
+        readPending();
+        
+        for (String next; (next = scanner.nextFieldName()) != null;) {
+            names.add(next);
+            texts.add(null);
+            
+            if (next.equals(fieldName)) {
+                pending = true;
+                
+                return names.size() - 1;
+            }
+            
+            texts.set(names.size() - 1, scanner.readTextOrSkip());
+        }
+        
+        scanner = null;
+        complete = true;
+        
+        return -1;
+    }
+    
+    /**
+     * Read the text of the last field found if it is not read yet.
+     */
+    private void readPending() throws XMLStreamException {
+        if (pending) {
+            pending = false;
+            texts.set(names.size() - 1, scanner.readTextOrSkip());
+        }
+    }
+    
+    /**
+     * Open a reader positioned before the field at the index.
+     */
+    private MessageReader openAt(int index) throws XMLStreamException {
+        MessageReader reader = source.open();
+        
+        reader.start();
+        
+        for (int i = 0; i < index; i++) {
+            reader.nextField();
+            reader.readTextOrSkip();
+        }
+        
+        return reader;
+    }
+}
@@ -0,0 +1,450 @@
+package org.cclab.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serialize messages through StAX, which is how
+ * {@link XMLDocument#toXMLString()} is made. The output is the one of the DOM
+ * serializer it replaced: line feeds are dropped, carriage returns are
+ * written as character references and empty nodes are self-closed.
+ *
+ * A message built from its fields is written without a DOM. A message that
+ * holds a DOM, for example a signed one, is written by walking its nodes.
+ * @author Scott
+ */
+public class MessageWriter {
+    private static final String ENCODING = "UTF-8";
+    private static final String VERSION = "1.0";
+    private static final String XMLNS = "xmlns";
+    
+    private static final XMLOutputFactory OutputFactory;
+    
+    /*
+     * The encoding buffer of each thread, which is taken out while a writer
+     * uses it.
+     */
+    private static final ThreadLocal<byte[]> Buffers;
+    
+    private final XMLStreamWriter writer;
+    
+    static {
+        OutputFactory = XMLOutputFactory.newInstance();
+        Buffers = ThreadLocal.withInitial(() -> new byte[UTF8Writer.BUFFER_SIZE]);
+    }
+    
+    private MessageWriter(XMLStreamWriter writer) {
+        this.writer = writer;
+    }
+    
+    /**
+     * Create a writer to an output stream in UTF-8.
+     * @param out the output stream, which is not closed by the writer.
+     * @throws XMLStreamException
+     */
+    public static MessageWriter of(OutputStream out) throws XMLStreamException {
+        return new MessageWriter(OutputFactory.createXMLStreamWriter(
+            new UTF8Writer(out, null, new byte[UTF8Writer.BUFFER_SIZE])));
+    }
+    
+    /**
+     * Write a message to an output stream through the encoding buffer of the
+     * calling thread.
+     * @param doc the message.
+     * @param out the output stream, which is not closed.
+     * @throws IOException raised if the stream fails or the message cannot be
+     *         serialized.
+     */
+    static void writeTo(XMLDocument doc, OutputStream out) throws IOException {
+        writeTo(doc, out, null);
+    }
+    
+    /**
+     * Write a message to a channel through the encoding buffer of the calling
+     * thread.
+     * @param doc the message.
+     * @param channel the channel, which is not closed.
+     * @throws IOException raised if the channel fails or the message cannot
+     *         be serialized.
+     */
+    static void writeTo(XMLDocument doc, WritableByteChannel channel) throws IOException {
+        writeTo(doc, null, channel);
+    }
+    
+    private static void writeTo(XMLDocument doc, OutputStream out, WritableByteChannel channel)
+        throws IOException {
+        byte[] buffer = Buffers.get();
+        
+        // a writer nested in another one on this thread gets a buffer of its own
+        if (buffer == null) {
+            buffer = new byte[UTF8Writer.BUFFER_SIZE];
+        } else {
+            Buffers.set(null);
+        }
+        
+        try {
+            UTF8Writer encoder = new UTF8Writer(out, channel, buffer);
+            
+            if (doc.isRenderable()) {
+                StringBuilder text = new StringBuilder(256);
+                
+                new MessageTemplate.Renderer(text).renderDocument(doc);
+                encoder.append(text);
+                encoder.flush();
+            } else {
+                new MessageWriter(OutputFactory.createXMLStreamWriter(encoder)).writeDocument(doc);
+            }
+        } catch (XMLStreamException ex) {
+            if (ex.getNestedException() instanceof IOException) {
+                throw (IOException) ex.getNestedException();
+            }
+            
+            throw new IOException(ex);
+        } finally {
+            Buffers.set(buffer);
+        }
+    }
+    
+    /**
+     * Create a writer to a character stream.
+     * @param out the character stream, which is not closed by the writer.
+     * @throws XMLStreamException
+     */
+    public static MessageWriter of(Writer out) throws XMLStreamException {
+        return new MessageWriter(OutputFactory.createXMLStreamWriter(out));
+    }
+    
+    /**
+     * Write a message with the XML declaration, and flush the writer.
+     * @param doc the message.
+     * @throws XMLStreamException
+     */
+    public void writeDocument(XMLDocument doc) throws XMLStreamException {
+        writer.writeStartDocument(ENCODING, VERSION);
+        writeMessage(doc);
+        writer.writeEndDocument();
+        writer.flush();
+    }
+    
+    /**
+     * Write the root element of a message.
+     * @param doc the message.
+     * @throws XMLStreamException
+     */
+    public void writeMessage(XMLDocument doc) throws XMLStreamException {
+        if (doc.document != null) {
+            writeNode(doc.rootNode);
+        } else {
+            writer.writeStartElement(doc.name);
+            doc.writeBody(this);
+            
+            if (doc.signature != null) {
+                writeNode(doc.signature);
+            }
+            
+            writer.writeEndElement();
+        }
+    }
+    
+    /**
+     * Write one node of message body.
+     * @param key node name.
+     * @param value node value.
+     * @throws XMLStreamException
+     */
+    public void writeField(String key, String value) throws XMLStreamException {
+        if (value.isEmpty()) {
+            writer.writeEmptyElement(key);
+        } else {
+            writer.writeStartElement(key);
+            writeText(value);
+            writer.writeEndElement();
+        }
+    }
+    
+    /**
+     * Write nodes of message body recursively, in the same way as
+     * {@link XMLDocument#add2Body(java.util.LinkedHashMap)}.
+     * @param fields the nodes. The value of Map can be a String or another
+     *        Map.
+     * @throws XMLStreamException raised if type of value is not String or Map.
+     */
+    public void writeFields(Map<String, ?> fields) throws XMLStreamException {
+        for (Map.Entry<String, ?> field: fields.entrySet()) {
+            Object value = field.getValue();
+            
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, ?> nested = (Map<String, ?>) value;
+                
+                writer.writeStartElement(field.getKey());
+                writeFields(nested);
+                writer.writeEndElement();
+            } else if (value instanceof String) {
+                writeField(field.getKey(), (String) value);
+            } else {
+                throw new XMLStreamException(
+                    "Unknown node value type: " + value.getClass().getName());
+            }
+        }
+    }
+    
+    /**
+     * Write one nested message into message body.
+     * @param key node name.
+     * @param doc the nested message.
+     * @param nesting how the message is nested.
+     * @throws XMLStreamException
+     */
+    public void writeNested(String key, XMLDocument doc, XMLDocument.Nesting nesting)
+        throws XMLStreamException {
+        if (nesting == XMLDocument.Nesting.EMBEDDED) {
+            writer.writeStartElement(key);
+            writeMessage(doc);
+            writer.writeEndElement();
+        } else if (doc.escapedText != null) {
+            writeField(key, doc.escapedText);
+        } else if (doc.isRenderable()) {
+            StringBuilder nested = new StringBuilder(256);
+            
+            new MessageTemplate.Renderer(nested).renderDocument(doc);
+            writeField(key, nested.toString());
+        } else {
+            StringWriter nested = new StringWriter();
+            
+            MessageWriter.of(nested).writeDocument(doc);
+            writeField(key, nested.toString());
+        }
+    }
+    
+    /**
+     * Write an element as it is in the DOM, and flush the writer.
+     * @param element the element.
+     * @throws XMLStreamException
+     */
+    void writeElement(Element element) throws XMLStreamException {
+        writeNode(element);
+        writer.flush();
+    }
+    
+    private void writeNode(Node node) throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                if (node.hasChildNodes()) {
+                    writeStartElement(node, false);
+                    
+                    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        writeNode(child);
+                    }
+                    
+                    writer.writeEndElement();
+                } else {
+                    writeStartElement(node, true);
+                }
+                
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                writeText(node.getNodeValue());
+                
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void writeStartElement(Node node, boolean empty) throws XMLStreamException {
+        String prefix = node.getPrefix();
+        String localName = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+        
+        if (prefix == null || prefix.isEmpty()) {
+            if (empty) {
+                writer.writeEmptyElement(localName);
+            } else {
+                writer.writeStartElement(localName);
+            }
+        } else {
+            if (empty) {
+                writer.writeEmptyElement(prefix, localName, node.getNamespaceURI());
+            } else {
+                writer.writeStartElement(prefix, localName, node.getNamespaceURI());
+            }
+        }
+        
+        NamedNodeMap attributes = node.getAttributes();
+        
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attr = (Attr) attributes.item(i);
+            String name = attr.getName();
+            
+            if (name.equals(XMLNS)) {
+                writer.writeDefaultNamespace(attr.getValue());
+            } else if (name.startsWith(XMLNS + ":")) {
+                writer.writeNamespace(name.substring(XMLNS.length() + 1), attr.getValue());
+            } else {
+                writer.writeAttribute(name, attr.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Write text as the DOM serializer did, without the line feeds which
+     * toXMLString used to drop from its output.
+     */
+    private void writeText(String text) throws XMLStreamException {
+        int start = 0;
+        
+        for (int i = 0; i < text.length();) {
+            int codePoint = text.codePointAt(i);
+            int next = i + Character.charCount(codePoint);
+            
+            if (codePoint == '\n' || isReferenced(codePoint)) {
+                if (i > start) {
+                    writer.writeCharacters(text.substring(start, i));
+                }
+                
+                if (codePoint != '\n') {
+                    writer.writeEntityRef("#" + codePoint);
+                }
+                
+                start = next;
+            }
+            
+            i = next;
+        }
+        
+        if (start < text.length()) {
+            writer.writeCharacters(start == 0 ? text : text.substring(start));
+        }
+    }
+    
+    /**
+     * Returns true if the DOM serializer wrote the character as a character
+     * reference: carriage returns, DEL and C1 controls, and supplementary
+     * characters.
+     */
+    private static boolean isReferenced(int codePoint) {
+        return codePoint == '\r'
+            || (codePoint >= 0x7f && codePoint <= 0x9f)
+            || Character.isSupplementaryCodePoint(codePoint);
+    }
+    
+    /**
+     * Encode characters into UTF-8 through a small buffer, which is written
+     * to an output stream or a channel when it is full or flushed.
+     *
+     * A stream writer given an OutputStream or an OutputStreamWriter checks
+     * every character against the encoder, and the encoder allocates large
+     * buffers, both of which are useless for UTF-8 and short messages.
+     */
+    private static class UTF8Writer extends Writer {
+        static final int BUFFER_SIZE = 8192;
+        
+        private final OutputStream out;
+        private final WritableByteChannel channel;
+        private final byte[] buffer;
+        private int count;
+        private char highSurrogate;
+        
+        UTF8Writer(OutputStream out, WritableByteChannel channel, byte[] buffer) {
+            this.out = out;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                write(chars[i]);
+            }
+        }
+        
+        @Override
+        public void write(String str, int offset, int length) throws IOException {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                write(str.charAt(i));
+            }
+        }
+        
+        @Override
+        public void write(int c) throws IOException {
+            if (count > BUFFER_SIZE - 4) {
+                flushBuffer();
+            }
+            
+            if (highSurrogate != 0) {
+                int codePoint = Character.isLowSurrogate((char) c)
+                                ? Character.toCodePoint(highSurrogate, (char) c)
+                                : '?';
+                
+                highSurrogate = 0;
+                
+                if (codePoint == '?') {
+                    buffer[count++] = '?';
+                } else {
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                    
+                    return;
+                }
+            }
+            
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate((char) c)) {
+                highSurrogate = (char) c;
+            } else if (Character.isLowSurrogate((char) c)) {
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        
+        private void flushBuffer() throws IOException {
+            if (out != null) {
+                out.write(buffer, 0, count);
+            } else {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            
+            count = 0;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            
+            if (out != null) {
+                out.flush();
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.cclab.message;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Algorithms of compact signatures, which sign the canonical bytes of a
+ * message instead of its canonicalized DOM. Each thread keeps its own
+ * engines, so signing on the hot path neither looks up the provider nor
+ * allocates a Signature.
+ *
+ * @author Scott
+ * @see XMLDocument#sign(PrivateKey, SignatureAlgorithm)
+ */
+public enum SignatureAlgorithm {
+    /**
+     * ECDSA on P-256 with SHA-256, the default for EC keys.
+     */
+    ECDSA_SHA256((byte) 1, "SHA256withECDSA", "EC"),
+    RSA_SHA256((byte) 2, "SHA256withRSA", "RSA"),
+    
+    /**
+     * Ed25519, which is provided since Java 15.
+     */
+    ED25519((byte) 3, "Ed25519", "EdDSA");
+    
+    /**
+     * Identifier of this algorithm in the binary format.
+     */
+    public final byte id;
+    
+    /**
+     * Name of this algorithm in JCA and in the XML format.
+     */
+    public final String algorithm;
+    
+    /**
+     * Algorithm of the keys used by this algorithm.
+     */
+    public final String keyAlgorithm;
+    
+    private final ThreadLocal<Signature> engines;
+    
+    SignatureAlgorithm(byte id, String algorithm, String keyAlgorithm) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.keyAlgorithm = keyAlgorithm;
+        this.engines = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(algorithm + " is not supported by this JVM", ex);
+            }
+        });
+    }
+    
+    public static SignatureAlgorithm valueOf(byte id) {
+        for (SignatureAlgorithm alg: values()) {
+            if (alg.id == id) {
+                return alg;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unknown signature algorithm id: " + id);
+    }
+    
+    /**
+     * Returns the algorithm with the JCA name.
+     * @param algorithm the name, such as SHA256withECDSA.
+     * @throws IllegalArgumentException if the algorithm is unknown.
+     */
+    public static SignatureAlgorithm forName(String algorithm) {
+        for (SignatureAlgorithm alg: values()) {
+            if (alg.algorithm.equals(algorithm)) {
+                return alg;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unknown signature algorithm: " + algorithm);
+    }
+    
+    /**
+     * Returns the default algorithm for the key.
+     * @param key the private or public key.
+     * @throws IllegalArgumentException if no algorithm uses the key.
+     */
+    public static SignatureAlgorithm of(Key key) {
+        for (SignatureAlgorithm alg: values()) {
+            if (alg.keyAlgorithm.equals(key.getAlgorithm())) {
+                return alg;
+            }
+        }
+        
+        throw new IllegalArgumentException("No signature algorithm for " + key.getAlgorithm() + " keys");
+    }
+    
+    /**
+     * Returns true if the algorithm is provided by this JVM.
+     */
+    public boolean isAvailable() {
+        try {
+            Signature.getInstance(algorithm);
+            
+            return true;
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Sign the parts as if they were concatenated.
+     * @param privateKey the private key.
+     * @param parts the signed data.
+     * @return the signature value.
+     * @throws InvalidKeyException if the key does not fit the algorithm.
+     * @throws SignatureException
+     */
+    public byte[] sign(PrivateKey privateKey, byte[]... parts)
+        throws InvalidKeyException, SignatureException {
+        Signature engine = engines.get();
+        
+        engine.initSign(privateKey);
+        
+        for (byte[] part: parts) {
+            engine.update(part);
+        }
+        
+        return engine.sign();
+    }
+    
+    /**
+     * Verify the signature of the parts as if they were concatenated.
+     * @param publicKey the public key.
+     * @param value the signature value.
+     * @param parts the signed data.
+     * @return true if the signature is valid.
+     * @throws InvalidKeyException if the key does not fit the algorithm.
+     */
+    public boolean verify(PublicKey publicKey, byte[] value, byte[]... parts) throws InvalidKeyException {
+        Signature engine = engines.get();
+        
+        engine.initVerify(publicKey);
+        
+        try {
+            for (byte[] part: parts) {
+                engine.update(part);
+            }
+            
+            return engine.verify(value);
+        } catch (SignatureException ex) {
+            // a malformed value is an invalid signature
+            return false;
+        }
+    }
+}
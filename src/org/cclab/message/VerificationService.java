@@ -0,0 +1,211 @@
+package org.cclab.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Parse and verify serialized messages of one signer on a pool of worker
+ * threads, with at most maxPending messages in progress.
+ * @author Scott
+ * @see XMLDocument#verifyDigitalSignature(PublicKey)
+ */
+public class VerificationService implements Closeable {
+    /**
+     * Decodes a message from its serialized form.
+     * @param <T> type of the message.
+     */
+    public interface Decoder<T extends XMLDocument> {
+        T decode(byte[] bytes) throws Exception;
+    }
+    
+    /**
+     * The outcome of verifying one message.
+     * @param <T> type of the message.
+     */
+    public static class Result<T extends XMLDocument> {
+        private final long index;
+        private final T message;
+        private final boolean valid;
+        private final Exception error;
+        
+        Result(long index, T message, boolean valid, Exception error) {
+            this.index = index;
+            this.message = message;
+            this.valid = valid;
+            this.error = error;
+        }
+        
+        /**
+         * Returns the position of the message in the submitted stream.
+         */
+        public long getIndex() {
+            return index;
+        }
+        
+        /**
+         * Returns the message, or null if it cannot be decoded.
+         */
+        public T getMessage() {
+            return message;
+        }
+        
+        /**
+         * Returns true if the message is decoded and its signature is valid.
+         */
+        public boolean isValid() {
+            return valid;
+        }
+        
+        /**
+         * Returns the error raised by decoding or verifying, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+    
+    public static final int DEFAULT_MAX_PENDING = 1024;
+    
+    private final BatchVerifier verifier;
+    private final ExecutorService workers;
+    private final Semaphore permits;
+    private final int maxPending;
+    
+    /**
+     * Construct a verification service.
+     * @param publicKey the public key of the signer.
+     * @param threads the number of worker threads.
+     * @param maxPending the maximum number of messages in progress.
+     * @throws IllegalArgumentException if threads or maxPending is not
+     *         positive.
+     */
+    public VerificationService(PublicKey publicKey, int threads, int maxPending) {
+        if (threads <= 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("The minimum value for threads and pending messages is 1.");
+        }
+        
+        AtomicInteger count = new AtomicInteger();
+        
+        this.verifier = new BatchVerifier(publicKey);
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "verifier-" + count.incrementAndGet());
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        this.permits = new Semaphore(maxPending);
+        this.maxPending = maxPending;
+    }
+    
+    /**
+     * Construct a verification service with a worker per processor.
+     * @param publicKey the public key of the signer.
+     */
+    public VerificationService(PublicKey publicKey) {
+        this(publicKey, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING);
+    }
+    
+    /**
+     * Returns a decoder of XML messages read through StAX.
+     * @param parser the reader of the message, such as Acknowledgement::read.
+     */
+    public static <T extends XMLDocument> Decoder<T> xml(MessageReader.Parser<T> parser) {
+        return bytes -> parser.read(MessageReader.of(new ByteArrayInputStream(bytes)));
+    }
+    
+    /**
+     * Submit a message to be decoded and verified. It blocks while
+     * maxPending messages are in progress.
+     * @param index the position of the message, returned in its result.
+     * @param bytes the serialized message.
+     * @param decoder the decoder of the message.
+     * @return the future completed with the result, never exceptionally.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T extends XMLDocument> CompletableFuture<Result<T>> submit(long index, byte[] bytes,
+                                                                        Decoder<T> decoder)
+        throws InterruptedException {
+        permits.acquire();
+        
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return verify(index, bytes, decoder);
+                } finally {
+                    permits.release();
+                }
+            }, workers);
+        } catch (RuntimeException ex) {
+            permits.release();
+            
+            throw ex;
+        }
+    }
+    
+    private <T extends XMLDocument> Result<T> verify(long index, byte[] bytes, Decoder<T> decoder) {
+        T message = null;
+        
+        try {
+            message = decoder.decode(bytes);
+            
+            return new Result<>(index, message, verifier.verify(message), null);
+        } catch (Exception ex) {
+            return new Result<>(index, message, false, ex);
+        }
+    }
+    
+    /**
+     * Decode and verify a stream of messages, passing the results to the
+     * consumer in the order of the stream.
+     * @param messages the serialized messages.
+     * @param decoder the decoder of the messages.
+     * @param consumer the consumer of the results.
+     * @return the number of messages.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T extends XMLDocument> long verifyAll(Iterator<byte[]> messages, Decoder<T> decoder,
+                                                  Consumer<? super Result<T>> consumer)
+        throws InterruptedException {
+        ArrayDeque<CompletableFuture<Result<T>>> inFlight = new ArrayDeque<>(maxPending);
+        long index = 0;
+        
+        while (messages.hasNext()) {
+            inFlight.add(submit(index++, messages.next(), decoder));
+            
+            while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() >= maxPending)) {
+                consumer.accept(inFlight.poll().join());
+            }
+        }
+        
+        while (!inFlight.isEmpty()) {
+            consumer.accept(inFlight.poll().join());
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Stop the workers after the submitted messages are verified.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.cclab.message;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.cclab.utility.HashFunction;
+
+/**
+ * A bounded set of signed messages which have been verified, so that
+ * verifying the same message again, such as a request nested in many
+ * acknowledgements of a log, costs a hash instead of a canonicalization and
+ * a signature check. Only successful verifications are recorded.
+ *
+ * An entry is the digest of the exact input of a verification and the
+ * fingerprint of the public key. For a XML-DSig signature the input is the
+ * XML of the whole document, so any change to the XML misses the cache; for
+ * a compact signature it is the signed bytes and the decoded signature. The
+ * least recently used entries are evicted first.
+ *
+ * No cache is used unless one is set on {@link XMLDocument}.
+ * @author Scott
+ * @see XMLDocument#setVerificationCache(VerifiedSignatureCache)
+ */
+public class VerifiedSignatureCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    
+    private static final HashFunction HASH_FUNCTION = HashFunction.SHA256;
+    
+    private final Set<ByteBuffer> entries;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    
+    /*
+     * Messages are usually verified with one key, so the fingerprint of the
+     * last key is kept instead of hashing the encoded key on every lookup.
+     */
+    private volatile Fingerprint lastFingerprint;
+    
+    /**
+     * Construct a cache.
+     * @param capacity the maximum number of entries.
+     */
+    public VerifiedSignatureCache(int capacity) {
+        this.entries = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            }));
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+    
+    public VerifiedSignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Returns true if the message has been verified with the key.
+     * @param digest the digest of the input of the verification.
+     * @param publicKey the public key.
+     */
+    public boolean contains(byte[] digest, PublicKey publicKey) {
+        boolean found = entries.contains(entryOf(digest, publicKey));
+        
+        (found ? hits : misses).incrementAndGet();
+        
+        return found;
+    }
+    
+    /**
+     * Record that the message has been verified with the key.
+     * @param digest the digest of the input of the verification.
+     * @param publicKey the public key.
+     */
+    public void add(byte[] digest, PublicKey publicKey) {
+        entries.add(entryOf(digest, publicKey));
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    public void clear() {
+        entries.clear();
+    }
+    
+    public long getHitCount() {
+        return hits.get();
+    }
+    
+    public long getMissCount() {
+        return misses.get();
+    }
+    
+    /**
+     * Returns the digest of the input of a verification as used by this
+     * cache.
+     */
+    static byte[] digestOf(byte[] input) {
+        return HASH_FUNCTION.hash(input);
+    }
+    
+    private ByteBuffer entryOf(byte[] digest, PublicKey publicKey) {
+        byte[] fingerprint = fingerprintOf(publicKey);
+        byte[] entry = Arrays.copyOf(digest, digest.length + fingerprint.length);
+        
+        System.arraycopy(fingerprint, 0, entry, digest.length, fingerprint.length);
+        
+        return ByteBuffer.wrap(entry);
+    }
+    
+    private byte[] fingerprintOf(PublicKey publicKey) {
+        Fingerprint last = lastFingerprint;
+        
+        if (last == null || last.publicKey != publicKey) {
+            last = new Fingerprint(publicKey, HASH_FUNCTION.hash(publicKey.getEncoded()));
+            lastFingerprint = last;
+        }
+        
+        return last.digest;
+    }
+    
+    private static class Fingerprint {
+        final PublicKey publicKey;
+        final byte[] digest;
+        
+        Fingerprint(PublicKey publicKey, byte[] digest) {
+            this.publicKey = publicKey;
+            this.digest = digest;
+        }
+    }
+}
@@ -1,14 +1,23 @@
 package org.cclab.message;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
 import java.security.KeyException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.logging.Level;
@@ -19,6 +28,7 @@ import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.SignatureMethod;
 import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
@@ -28,35 +38,92 @@ import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
 import javax.xml.crypto.dsig.keyinfo.KeyValue;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import org.cclab.utility.HashFunction;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
  * The base class of all messages.
+ * 
+ * A message may contain other messages. They are nested either as escaped
+ * XML strings or as embedded elements, see {@link Nesting}. Messages parsed
+ * from a string accept both forms.
+ * 
+ * A message is signed either with an enveloped XML-DSig signature, or with
+ * a compact signature over its canonical bytes, see
+ * {@link #sign(PrivateKey, SignatureAlgorithm)}, which may be shared by a
+ * batch of messages, see {@link BatchSigner}. All of them are kept in the
+ * last Signature element, and {@link #verifyDigitalSignature(PublicKey)}
+ * accepts all of them.
  * @author Scott
  */
 public abstract class XMLDocument implements XMLable, Serializable {
+    /**
+     * How a message is nested in its enclosing message.
+     */
+    public enum Nesting {
+        /**
+         * The nested message is serialized and stored as the text of a node.
+         */
+        ESCAPED,
+        
+        /**
+         * The nested message is imported as a child element, so the
+         * enclosing message is serialized and parsed only once.
+         */
+        EMBEDDED
+    }
+    
+    private static final String SIGNATURE_NAME = "Signature";
+    private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+    private static final String ALGORITHM_NAME = "Algorithm";
+    
     private static final Logger LOGGER;
     private static final DocumentBuilderFactory DocumentFactory;
+    private static final DocumentBuilderFactory ParserFactory;
     
-    protected final Document document;
-    protected final Element rootNode;
+    /*
+     * Builders and signature factories are not thread-safe and are expensive
+     * to create, so each thread keeps its own and resets it before reuse.
+     */
+    private static final ThreadLocal<DocumentBuilder> DocumentBuilders;
+    private static final ThreadLocal<DocumentBuilder> Parsers;
+    private static final ThreadLocal<XMLSignatureFactory> SignatureFactories;
+    private static volatile VerifiedSignatureCache verificationCache;
+    
+    /*
+     * The DOM of a message read through StAX or built from its fields is
+     * built on demand, until then document and rootNode are null and the
+     * enveloped signature, if any, is kept in signature. A message read from
+     * escaped text also keeps the text, so it is written back as it was
+     * received. Subclasses use getDocument and getRootNode.
+     */
+    Document document;
+    Element rootNode;
+    final String name;
+    Element signature;
+    String escapedText;
     
     static {
         LOGGER = Logger.getLogger(XMLDocument.class.getName());
         DocumentFactory = DocumentBuilderFactory.newInstance();
+        ParserFactory = DocumentBuilderFactory.newInstance();
+        ParserFactory.setNamespaceAware(true);
+        DocumentBuilders = new ThreadLocal<>();
+        Parsers = new ThreadLocal<>();
+        SignatureFactories = ThreadLocal.withInitial(() -> XMLSignatureFactory.getInstance("DOM"));
     }
     
     /**
@@ -65,10 +132,23 @@ public abstract class XMLDocument implements XMLable, Serializable {
      * @throws javax.xml.parsers.ParserConfigurationException
      */
     public XMLDocument(String name) throws ParserConfigurationException {
-        document = DocumentFactory.newDocumentBuilder().newDocument();
+        document = getDocumentBuilder(DocumentBuilders, DocumentFactory).newDocument();
 
         rootNode = document.createElement(name);
         document.appendChild(rootNode);
+        this.name = name;
+    }
+    
+    /**
+     * Construct a message read through StAX. Its DOM is not built until it
+     * is signed, verified or embedded into a DOM.
+     * @param name Name of root node in the document.
+     * @param signature the enveloped signature, or null if not signed.
+     * @see MessageReader
+     */
+    protected XMLDocument(String name, Element signature) {
+        this.name = name;
+        this.signature = signature;
     }
     
     /**
@@ -78,6 +158,142 @@ public abstract class XMLDocument implements XMLable, Serializable {
     public XMLDocument(Document doc) {
         document = doc;
         rootNode = doc.getDocumentElement();
+        name = rootNode.getNodeName();
+    }
+    
+    /**
+     * Construct a XML document with an element embedded in another document.
+     * The element is shared, not copied.
+     * @param element the root element of this document.
+     */
+    public XMLDocument(Element element) {
+        document = element.getOwnerDocument();
+        rootNode = element;
+        name = element.getNodeName();
+    }
+    
+    /**
+     * Returns the DOM of this document, built first if needed.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    protected Document getDocument() throws TransformerException {
+        buildDocument();
+        
+        return document;
+    }
+    
+    /**
+     * Returns the root element of this document, built first if needed.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    protected Element getRootNode() throws TransformerException {
+        buildDocument();
+        
+        return rootNode;
+    }
+    
+    /**
+     * Returns true if this document is embedded in another document.
+     */
+    public boolean isEmbedded() {
+        return document != null && rootNode != document.getDocumentElement();
+    }
+    
+    /**
+     * Write the fields of message body, in the same order as they are added
+     * to the DOM.
+     * @param writer the writer.
+     * @throws XMLStreamException
+     */
+    protected abstract void writeBody(MessageWriter writer) throws XMLStreamException;
+    
+    /**
+     * Write the fields of message body in the binary format, in the same
+     * order as {@link #writeBody(MessageWriter)}.
+     * @param writer the writer.
+     * @throws IOException
+     * @see BinaryWriter
+     */
+    protected abstract void writeBinary(BinaryWriter writer) throws IOException;
+    
+    /**
+     * Returns the template of the message class, or null if the message is
+     * rendered through StAX.
+     * @see MessageTemplate
+     */
+    protected MessageTemplate getTemplate() {
+        return null;
+    }
+    
+    /**
+     * Render the fields of message body by the template of its class, in
+     * the same order as {@link #writeBody(MessageWriter)}.
+     * @param renderer the renderer.
+     * @throws XMLStreamException
+     */
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        throw new XMLStreamException("No template for " + getClass().getName());
+    }
+    
+    /**
+     * Returns true if the message is rendered by its template, which is the
+     * case when it is built from its fields and not signed.
+     */
+    boolean isRenderable() {
+        return document == null && signature == null && getTemplate() != null;
+    }
+    
+    /**
+     * Build the DOM of a message read through StAX by parsing its
+     * serialized form, which is byte-identical to the original one.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    private void buildDocument() throws TransformerException {
+        buildDocument(null);
+    }
+    
+    /**
+     * Build the DOM of a message read through StAX.
+     * @param written the output of {@link #writeDocument()} if it is already
+     *        written, or null.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    private void buildDocument(byte[] written) throws TransformerException {
+        if (document != null) {
+            return;
+        }
+        
+        try {
+            if (escapedText != null) {
+                document = parse(escapedText);
+            } else if (isRenderable()) {
+                document = parse(toXMLString());
+            } else {
+                document = getDocumentBuilder(Parsers, ParserFactory).parse(
+                    new ByteArrayInputStream(written != null ? written : writeDocument()));
+            }
+            
+            rootNode = document.getDocumentElement();
+            signature = null;
+            escapedText = null;
+        } catch (XMLStreamException |
+                 ParserConfigurationException |
+                 SAXException |
+                 IOException ex) {
+            throw new TransformerException(ex);
+        }
+    }
+    
+    /**
+     * Returns the UTF-8 XML of a message read through StAX, which its DOM is
+     * parsed from.
+     */
+    private byte[] writeDocument() throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        MessageWriter.of(out).writeDocument(this);
+        
+        return out.toByteArray();
     }
     
     /**
@@ -130,7 +346,7 @@ public abstract class XMLDocument implements XMLable, Serializable {
      */
     protected void add2Body(LinkedHashMap<String, ?> args)
         throws DatatypeConfigurationException, TransformerException {
-        add(rootNode, args);
+        add(getRootNode(), args);
     }
     
     /**
@@ -141,33 +357,132 @@ public abstract class XMLDocument implements XMLable, Serializable {
      */
     protected void add2Body(String key, XMLable xmlable)
         throws TransformerException {
-        add(rootNode, key, xmlable.toXMLString());
+        add(getRootNode(), key, xmlable.toXMLString());
     }
     
     /**
      * Insert one node into document body.
      * @param key node name.
      * @param value node value.
+     * @throws IllegalStateException if the DOM cannot be built.
      */
     protected void add2Body(String key, String value) {
-        add(rootNode, key, value);
+        try {
+            add(getRootNode(), key, value);
+        } catch (TransformerException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Insert one nested message into document body.
+     * @param key node name.
+     * @param doc the nested message.
+     * @param nesting how the message is nested.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    protected void add2Body(String key, XMLDocument doc, Nesting nesting)
+        throws TransformerException {
+        buildDocument();
+        
+        if (nesting == Nesting.EMBEDDED) {
+            Element node = document.createElement(key);
+            
+            doc.buildDocument();
+            
+            node.appendChild(document.importNode(doc.rootNode, true));
+            rootNode.appendChild(node);
+        } else {
+            add(rootNode, key, doc.toXMLString());
+        }
+    }
+    
+    /**
+     * Returns the root element of the message embedded in the node, or null
+     * if the message is escaped as text.
+     * @param node the node holding a nested message.
+     */
+    protected static Element getEmbeddedElement(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                return (Element) child;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the number of child nodes of the root, excluding the enveloped
+     * signatures. The DOM must be built, as in the constructors from an
+     * element.
+     */
+    protected int getBodyLength() {
+        int length = rootNode.getChildNodes().getLength();
+        
+        for (Node child = rootNode.getLastChild(); isSignature(child); child = child.getPreviousSibling()) {
+            length--;
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Returns the enveloped signature of this document, which is the last
+     * child of the root. Signatures of nested messages are not returned.
+     */
+    private Element getSignatureElement() {
+        Node last = rootNode.getLastChild();
+        
+        return isSignature(last) ? (Element) last : null;
+    }
+    
+    /**
+     * Returns the enveloped signature, either in the DOM or kept for a
+     * message read without one, or null if not signed.
+     */
+    Element getEnvelopedSignature() {
+        return document != null ? getSignatureElement() : signature;
+    }
+    
+    private static boolean isSignature(Node node) {
+        if (node == null || node.getNodeType() != Node.ELEMENT_NODE) {
+            return false;
+        }
+        
+        String name = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+        
+        return SIGNATURE_NAME.equals(name);
     }
     
     /**
      * Embed a digital signature into the document to demonstrate its authenticity.
+     * Embedded documents cannot be signed, sign them before nesting.
      * @param keyPair the key pair used to sign the document.
      * @return true if sign successfully.
      */
     public boolean sign(KeyPair keyPair) {
+        if (isEmbedded()) {
+            LOGGER.log(Level.SEVERE, "cannot sign an embedded document");
+            
+            return false;
+        }
+        
         try {
-            XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+            buildDocument();
+            
+            XMLSignatureFactory fac = SignatureFactories.get();
             
             CanonicalizationMethod cMethod = fac.newCanonicalizationMethod(
                     CanonicalizationMethod.INCLUSIVE,
                     (C14NMethodParameterSpec) null);
-            SignatureMethod signMethod = fac.newSignatureMethod(SignatureMethod.RSA_SHA1, null);
-            DigestMethod digestMethod = fac.newDigestMethod(DigestMethod.SHA1, null);
-            Reference ref = fac.newReference("", digestMethod);
+            SignatureMethod signMethod = fac.newSignatureMethod(RSA_SHA256, null);
+            DigestMethod digestMethod = fac.newDigestMethod(DigestMethod.SHA256, null);
+            Transform envelopedTransform = fac.newTransform(Transform.ENVELOPED,
+                                                            (TransformParameterSpec) null);
+            Reference ref = fac.newReference("", digestMethod,
+                                             Collections.singletonList(envelopedTransform),
+                                             null, null);
             
             SignedInfo signedInfo = fac.newSignedInfo(cMethod, signMethod, Collections.singletonList(ref));
             
@@ -182,12 +497,53 @@ public abstract class XMLDocument implements XMLable, Serializable {
             
             sig.sign(dsc);
             
+            // the serialized document has no line breaks, so they are removed
+            // here as well to keep an embedded copy identical to the one
+            // covered by the signature of the enclosing document
+            removeLineBreaks(getSignatureElement());
+            
             return true;
         } catch (NoSuchAlgorithmException |
                  InvalidAlgorithmParameterException |
                  XMLSignatureException |
                  MarshalException |
-                 KeyException ex) {
+                 KeyException |
+                 TransformerException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Embed a compact signature into the document. It signs the canonical
+     * bytes of the message, see {@link #toCanonicalBytes()}, prefixed with
+     * the class name so that it cannot be taken for another type of message.
+     * No DOM is built for a message read without one.
+     * Embedded documents cannot be signed, sign them before nesting.
+     * @param privateKey the private key used to sign the document.
+     * @param algorithm the signature algorithm fitting the key.
+     * @return true if sign successfully.
+     */
+    public boolean sign(PrivateKey privateKey, SignatureAlgorithm algorithm) {
+        if (isEmbedded()) {
+            LOGGER.log(Level.SEVERE, "cannot sign an embedded document");
+            
+            return false;
+        }
+        
+        try {
+            byte[] value = algorithm.sign(privateKey, getSignedBytes());
+            
+            attachSignature(createCompactSignature(algorithm, value));
+            
+            return true;
+        } catch (InvalidKeyException |
+                 SignatureException |
+                 IllegalStateException |
+                 IOException |
+                 ParserConfigurationException |
+                 TransformerException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
             
             return false;
@@ -195,34 +551,279 @@ public abstract class XMLDocument implements XMLable, Serializable {
     }
     
     /**
-     * Verify the digital signature in the document.
+     * Sign the document with the default compact signature algorithm of the
+     * key, such as ECDSA with SHA-256 for EC keys.
+     * @param privateKey the private key used to sign the document.
+     * @return true if sign successfully.
+     * @see #sign(PrivateKey, SignatureAlgorithm)
+     */
+    public boolean sign(PrivateKey privateKey) {
+        try {
+            return sign(privateKey, SignatureAlgorithm.of(privateKey));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Append a compact signature as the enveloped signature. A message read
+     * without a DOM keeps the element as it is.
+     * @param detached the signature element in a document of its own.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    void attachSignature(Element detached) throws TransformerException {
+        if (document == null && signature == null) {
+            signature = detached;
+            escapedText = null;
+        } else {
+            buildDocument();
+            
+            rootNode.appendChild(document.importNode(detached, true));
+        }
+    }
+    
+    /**
+     * Returns the bytes covered by a compact signature.
+     */
+    private byte[] getSignedBytes() throws IOException {
+        BinaryWriter writer = new BinaryWriter();
+        
+        writer.writeString(getClass().getName());
+        writer.writeDocument(this, false);
+        
+        return writer.toByteArray();
+    }
+    
+    /**
+     * Returns the SHA-256 digest of the bytes covered by a compact
+     * signature, which is the leaf of a batch signature.
+     * @throws IOException raised if a nested signature cannot be serialized.
+     * @see BatchSigner
+     */
+    byte[] getSignedDigest() throws IOException {
+        return HashFunction.SHA256.hash(getSignedBytes());
+    }
+    
+    /**
+     * Create a compact signature element in a document of its own.
+     * @see BinaryReader#readSignature()
+     */
+    static Element createCompactSignature(SignatureAlgorithm algorithm, byte[] value)
+        throws ParserConfigurationException {
+        Document doc = getDocumentBuilder(DocumentBuilders, DocumentFactory).newDocument();
+        Element element = doc.createElement(SIGNATURE_NAME);
+        
+        element.setAttribute(ALGORITHM_NAME, algorithm.algorithm);
+        element.setTextContent(Base64.getEncoder().encodeToString(value));
+        doc.appendChild(element);
+        
+        return element;
+    }
+    
+    /**
+     * Returns true if the signature element is a compact signature rather
+     * than a XML-DSig one, which has no Algorithm attribute of its own.
+     */
+    static boolean isCompactSignature(Element signature) {
+        return signature.hasAttribute(ALGORITHM_NAME);
+    }
+    
+    /**
+     * Returns the algorithm of a compact signature.
+     * @throws IllegalArgumentException if the algorithm is unknown.
+     */
+    static SignatureAlgorithm getCompactAlgorithm(Element signature) {
+        return SignatureAlgorithm.forName(signature.getAttribute(ALGORITHM_NAME));
+    }
+    
+    /**
+     * Returns the value of a compact signature.
+     * @throws IllegalArgumentException if the value is not in Base64.
+     */
+    static byte[] getCompactValue(Element signature) {
+        return Base64.getDecoder().decode(signature.getTextContent());
+    }
+    
+    private boolean verifyCompactSignature(PublicKey publicKey, Element signatureElement) {
+        try {
+            VerifiedSignatureCache cache = verificationCache;
+            byte[] signedBytes = getSignedBytes();
+            byte[] digest = null;
+            
+            if (cache != null) {
+                // the signed bytes and the signature as decoded for checking
+                BinaryWriter writer = new BinaryWriter();
+                
+                writer.writeBytes(signedBytes);
+                writer.writeSignature(signatureElement);
+                digest = VerifiedSignatureCache.digestOf(writer.toByteArray());
+                
+                if (cache.contains(digest, publicKey)) {
+                    return true;
+                }
+            }
+            
+            boolean valid;
+            
+            if (BatchSignature.isBatchSignature(signatureElement)) {
+                valid = BatchSignature.of(signatureElement).verify(publicKey,
+                                                                   HashFunction.SHA256.hash(signedBytes));
+            } else {
+                valid = getCompactAlgorithm(signatureElement).verify(publicKey,
+                                                                     getCompactValue(signatureElement),
+                                                                     signedBytes);
+            }
+            
+            if (valid && digest != null) {
+                cache.add(digest, publicKey);
+            }
+            
+            return valid;
+        } catch (IllegalArgumentException |
+                 IllegalStateException |
+                 InvalidKeyException |
+                 IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Remove line breaks from the Base64 texts of a signature. SignedInfo is
+     * left intact since it is covered by the signature value.
+     */
+    private static void removeLineBreaks(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                child.setNodeValue(child.getNodeValue().replaceAll("[\n\r]", ""));
+            } else if (!"SignedInfo".equals(child.getLocalName())) {
+                removeLineBreaks(child);
+            }
+        }
+    }
+    
+    /**
+     * Verify the digital signature in the document. An embedded document is
+     * verified on a detached copy, as if it had been parsed on its own. A
+     * compact signature is verified without building a DOM.
+     * 
+     * If a verification cache is set, a document whose whole XML has passed
+     * with the same key is not checked again. A message read through StAX
+     * is looked up by the XML its DOM is parsed from, so a hit builds no
+     * DOM.
      * @param publicKey the public key used to verify the digital signature.
      * @return true if the digital signature is valid.
+     * @see #setVerificationCache(VerifiedSignatureCache)
      */
     public boolean verifyDigitalSignature(PublicKey publicKey) {
+        Element enveloped = getEnvelopedSignature();
+        
+        if (enveloped != null && isCompactSignature(enveloped)) {
+            return verifyCompactSignature(publicKey, enveloped);
+        }
+        
         try {
-            NodeList nl = document.getElementsByTagName("Signature");
+            VerifiedSignatureCache cache = verificationCache;
+            byte[] digest = null;
+            byte[] written = null;
+            
+            if (cache != null && document == null && enveloped != null) {
+                if (escapedText != null) {
+                    digest = VerifiedSignatureCache.digestOf(escapedText.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    written = writeDocument();
+                    digest = VerifiedSignatureCache.digestOf(written);
+                }
+                
+                if (cache.contains(digest, publicKey)) {
+                    return true;
+                }
+            }
+            
+            buildDocument(written);
+            
+            Element signatureElement = getSignatureElement();
+            
+            if (signatureElement == null) {
+                return false;
+            }
+            
+            Element root = rootNode;
+            
+            if (isEmbedded()) {
+                Document detached = getDocumentBuilder(Parsers, ParserFactory).newDocument();
+                
+                root = (Element) detached.importNode(rootNode, true);
+                detached.appendChild(root);
+                
+                // the signature is the last child, as in the embedded copy
+                signatureElement = (Element) root.getLastChild();
+            }
+            
+            if (cache != null && digest == null) {
+                // the whole document the signature is validated in, outside the root included
+                digest = VerifiedSignatureCache.digestOf(serialize(root.getOwnerDocument()));
+                
+                if (cache.contains(digest, publicKey)) {
+                    return true;
+                }
+            }
             
             // Create a DOM XMLSignatureFactory that will be used to unmarshal
             // the document containing the XMLSignature
-            XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+            XMLSignatureFactory fac = SignatureFactories.get();
             
             // Create a DOMValidateContext and specify a KeyValue KeySelector
             // and document context
-            DOMValidateContext valContext = new DOMValidateContext(publicKey, nl.item(0));
+            DOMValidateContext valContext = new DOMValidateContext(publicKey, signatureElement);
             
             // unmarshal the XMLSignature
             XMLSignature signature = fac.unmarshalXMLSignature(valContext);
             
             // Validate the XMLSignature (generated above)
-            return signature.validate(valContext);
-        } catch (MarshalException | XMLSignatureException ex) {
+            boolean valid = signature.validate(valContext);
+            
+            if (valid && digest != null) {
+                cache.add(digest, publicKey);
+            }
+            
+            return valid;
+        } catch (MarshalException |
+                 XMLSignatureException |
+                 ParserConfigurationException |
+                 XMLStreamException |
+                 TransformerException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
         
         return false;
     }
     
+    /**
+     * Returns the UTF-8 XML of a document exactly as it is in the DOM.
+     */
+    private static byte[] serialize(Document doc) {
+        DOMImplementationLS ls = (DOMImplementationLS) doc.getImplementation();
+        
+        return ls.createLSSerializer().writeToString(doc).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Set the cache of verified messages shared by all documents, or null to
+     * verify every signature. No cache is used unless it is set.
+     * @param cache the cache.
+     */
+    public static void setVerificationCache(VerifiedSignatureCache cache) {
+        verificationCache = cache;
+    }
+    
+    public static VerifiedSignatureCache getVerificationCache() {
+        return verificationCache;
+    }
+    
     /**
      * Convert document into XML format string.
      * @return XML format string
@@ -230,13 +831,94 @@ public abstract class XMLDocument implements XMLable, Serializable {
      */
     @Override
     public String toXMLString() throws TransformerException {
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-
-        StreamResult result = new StreamResult(new StringWriter());
-        DOMSource source = new DOMSource(rootNode);
-        transformer.transform(source, result);
-
-        return result.getWriter().toString().replaceAll("[\n\r]", "");
+        if (escapedText != null) {
+            return escapedText;
+        }
+        
+        try {
+            if (isRenderable()) {
+                StringBuilder out = new StringBuilder(256);
+                
+                new MessageTemplate.Renderer(out).renderDocument(this);
+                
+                return out.toString();
+            }
+            
+            StringWriter writer = new StringWriter();
+            
+            MessageWriter.of(writer).writeDocument(this);
+            
+            return writer.toString();
+        } catch (XMLStreamException ex) {
+            throw new TransformerException(ex);
+        }
+    }
+    
+    /**
+     * Write the message to an output stream in UTF-8 through StAX. The
+     * bytes are identical to {@link #toXMLString()}, and no DOM is built for
+     * a message read through StAX.
+     * @param out the output stream, which is not closed.
+     * @throws XMLStreamException
+     * @see MessageWriter
+     */
+    public void write(OutputStream out) throws XMLStreamException {
+        MessageWriter.of(out).writeDocument(this);
+    }
+    
+    /**
+     * Write the message to an output stream in UTF-8, as
+     * {@link #write(OutputStream)}, through the encoding buffer of the
+     * calling thread. No string of the message is created.
+     * @param out the output stream, which is not closed.
+     * @throws IOException raised if the stream fails or the message cannot be
+     *         serialized.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        MessageWriter.writeTo(this, out);
+    }
+    
+    /**
+     * Write the message to a channel in UTF-8, as
+     * {@link #write(OutputStream)}. The encoding buffer of the calling thread
+     * is written to the channel whenever it is full, so a short message
+     * takes one write. The call returns when all bytes are written, so the
+     * channel is expected to be in blocking mode.
+     * @param channel the channel, which is not closed.
+     * @throws IOException raised if the channel fails or the message cannot
+     *         be serialized.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        MessageWriter.writeTo(this, channel);
+    }
+    
+    /**
+     * Encode the message in the binary format. The message can be decoded by
+     * fromBinary of its class and converted back to the same XML.
+     * @return the encoded message.
+     * @throws IOException raised if the signature cannot be serialized.
+     * @see BinaryWriter
+     */
+    public byte[] toBinary() throws IOException {
+        BinaryWriter writer = new BinaryWriter();
+        
+        writer.writeDocument(this, true);
+        
+        return writer.toByteArray();
+    }
+    
+    /**
+     * Encode the message in the canonical binary form, which leaves out the
+     * enveloped signature so that it can be signed.
+     * @return the canonical bytes.
+     * @throws IOException raised if a nested signature cannot be serialized.
+     */
+    public byte[] toCanonicalBytes() throws IOException {
+        BinaryWriter writer = new BinaryWriter();
+        
+        writer.writeDocument(this, false);
+        
+        return writer.toByteArray();
     }
     
     /**
@@ -249,13 +931,31 @@ public abstract class XMLDocument implements XMLable, Serializable {
      */
     public static Document parse(String str)
         throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-        builderFactory.setNamespaceAware(true);
-
-        DocumentBuilder documentBuilder = builderFactory.newDocumentBuilder();
+        DocumentBuilder documentBuilder = getDocumentBuilder(Parsers, ParserFactory);
 
         InputSource inputSource = new InputSource(new StringReader(str));
 
         return documentBuilder.parse(inputSource);
     }
+    
+    /**
+     * Returns the reset document builder of the calling thread.
+     */
+    private static DocumentBuilder getDocumentBuilder(ThreadLocal<DocumentBuilder> builders,
+                                                      DocumentBuilderFactory factory)
+        throws ParserConfigurationException {
+        DocumentBuilder builder = builders.get();
+        
+        if (builder == null) {
+            synchronized (factory) {
+                builder = factory.newDocumentBuilder();
+            }
+            
+            builders.set(builder);
+        } else {
+            builder.reset();
+        }
+        
+        return builder;
+    }
 }
@@ -1,10 +1,19 @@
 package org.cclab.message.foursteps.chainhash_lsn;
 
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -13,17 +22,31 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class ReplyResponse extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("reply-response");
+    private static final MessageTemplate.Field REPLY_RESPONSE_FIELD = TEMPLATE.field("reply-response");
+    
     private final Response response;
+    private final Nesting nesting;
     
     public ReplyResponse(Response res)
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("reply-response");
+        this(res, Nesting.ESCAPED);
+    }
+    
+    /**
+     * Construct the reply-response with the nested response in the specified form.
+     * @param nesting how the response is nested.
+     */
+    public ReplyResponse(Response res, Nesting nesting)
+        throws ParserConfigurationException,
+               DatatypeConfigurationException,
+               TransformerException {
+        super("reply-response", null);
         
         this.response = res;
-        
-        super.add2Body("reply-response", res.toXMLString());
+        this.nesting = nesting;
     }
     
     /**
@@ -37,12 +60,107 @@ public class ReplyResponse extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(xmlStr));
+        this(XMLDocument.parse(xmlStr).getDocumentElement());
+    }
+    
+    /**
+     * Construct the reply-response by the XML element. The nested response is
+     * read from the embedded element, or parsed from the text if it is
+     * escaped.
+     * @param element the root element of the reply-response.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public ReplyResponse(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
-        String rrStr = body.item(0).getTextContent();
+        NodeList body = element.getChildNodes();
+        Node nestedNode = body.item(0);
+        Element nestedElement = getEmbeddedElement(nestedNode);
         
-        this.response = new Response(rrStr);
+        this.response = nestedElement != null ? new Response(nestedElement)
+                                              : new Response(nestedNode.getTextContent());
+        this.nesting = nestedElement != null ? Nesting.EMBEDDED : Nesting.ESCAPED;
+    }
+    
+    /**
+     * Construct the reply-response read through StAX.
+     */
+    private ReplyResponse(Response res, Nesting nesting, Element signature) {
+        super("reply-response", signature);
+        
+        this.response = res;
+        this.nesting = nesting;
+    }
+    
+    /**
+     * Read the reply-response through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static ReplyResponse read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the reply-response from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static ReplyResponse read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        Response res = reader.readNested(Response::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        reader.end();
+        
+        return new ReplyResponse(res, nesting, reader.getSignature());
+    }
+    
+    /**
+     * Decode the reply-response from the binary format.
+     * @param bytes the encoded reply-response.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static ReplyResponse fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, ReplyResponse::read);
+    }
+    
+    /**
+     * Read the reply-response body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static ReplyResponse read(BinaryReader reader) throws IOException {
+        Response res = reader.readNested(Response::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        return new ReplyResponse(res, nesting, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeNested("reply-response", response, nesting);
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeNested(response, nesting);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeNested(REPLY_RESPONSE_FIELD, response, nesting);
     }
     
     public Response getResponse() {
@@ -1,11 +1,21 @@
 package org.cclab.message.foursteps.chainhash_lsn;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import org.cclab.Operation;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -14,6 +24,10 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class Request extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("request");
+    private static final MessageTemplate.Field CLIENT_ID_FIELD = TEMPLATE.field("clientID");
+    private static final MessageTemplate.Field LSN_FIELD = TEMPLATE.field("lsn");
+    
     private final Operation operation;
     private final String clientID;
     private final Integer localSequenceNumber;
@@ -22,15 +36,11 @@ public class Request extends XMLDocument {
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("request");
+        super("request", null);
         
         this.operation = op;
         this.clientID = clientID;
         this.localSequenceNumber = lsn;
-        
-        super.add2Body(operation.toMap());
-        super.add2Body("clientID", clientID);
-        super.add2Body("lsn", localSequenceNumber.toString());
     }
     
     /**
@@ -44,18 +54,116 @@ public class Request extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(xmlStr));
+        this(XMLDocument.parse(xmlStr).getDocumentElement());
+    }
+    
+    /**
+     * Construct the request by the XML element.
+     * @param element the root element of the request.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public Request(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
-        NodeList operationNode = body.item(0).getChildNodes();
-        String id = body.item(1).getTextContent();
-        Integer lsn = Integer.decode(body.item(2).getTextContent());
+        NodeList body = element.getChildNodes();
+        int end = getBodyLength();
+        String id = body.item(end - 2).getTextContent();
+        Integer lsn = Integer.decode(body.item(end - 1).getTextContent());
         
-        this.operation = new Operation(operationNode);
+        this.operation = new Operation(body, end - 2);
         this.clientID = id;
         this.localSequenceNumber = lsn;
     }
     
+    /**
+     * Construct the request read through StAX.
+     */
+    private Request(Operation op, String id, Integer lsn, Element signature) {
+        super("request", signature);
+        
+        this.operation = op;
+        this.clientID = id;
+        this.localSequenceNumber = lsn;
+    }
+    
+    /**
+     * Read the request through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static Request read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the request from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static Request read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        List<Map.Entry<String, String>> fields = reader.readFields();
+        int end = fields.size();
+        String id = fields.get(end - 2).getValue();
+        Integer lsn = Integer.decode(fields.get(end - 1).getValue());
+        
+        return new Request(new Operation(fields.subList(0, end - 2)), id, lsn, reader.getSignature());
+    }
+    
+    /**
+     * Decode the request from the binary format.
+     * @param bytes the encoded request.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Request fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, Request::read);
+    }
+    
+    /**
+     * Read the request body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Request read(BinaryReader reader) throws IOException {
+        Operation op = reader.readOperation();
+        String id = reader.readString();
+        Integer lsn = reader.readInt();
+        
+        return new Request(op, id, lsn, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeFields(operation.toMap());
+        writer.writeField("clientID", clientID);
+        writer.writeField("lsn", localSequenceNumber.toString());
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeOperation(operation);
+        writer.writeString(clientID);
+        writer.writeInt(localSequenceNumber);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeFields(operation.toMap());
+        renderer.writeField(CLIENT_ID_FIELD, clientID);
+        renderer.writeField(LSN_FIELD, localSequenceNumber.toString());
+    }
+    
     public Operation getOperation() {
         return operation;
     }
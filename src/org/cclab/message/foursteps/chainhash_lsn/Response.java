@@ -1,10 +1,19 @@
 package org.cclab.message.foursteps.chainhash_lsn;
 
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -13,23 +22,37 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class Response extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("response");
+    private static final MessageTemplate.Field RESULT_FIELD = TEMPLATE.field("result");
+    private static final MessageTemplate.Field CHAIN_HASH_FIELD = TEMPLATE.field("chainhash");
+    private static final MessageTemplate.Field REQUEST_FIELD = TEMPLATE.field("request");
+    
     private final String result;
     private final String lastChainHash;
     private final Request request;
+    private final Nesting nesting;
     
     public Response(String result, String lastCH, Request req)
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("response");
+        this(result, lastCH, req, Nesting.ESCAPED);
+    }
+    
+    /**
+     * Construct the response with the nested request in the specified form.
+     * @param nesting how the request is nested.
+     */
+    public Response(String result, String lastCH, Request req, Nesting nesting)
+        throws ParserConfigurationException,
+               DatatypeConfigurationException,
+               TransformerException {
+        super("response", null);
         
         this.result = result;
         this.lastChainHash = lastCH;
         this.request = req;
-        
-        super.add2Body("result", result);
-        super.add2Body("chainhash", lastChainHash);
-        super.add2Body("request", req.toXMLString());
+        this.nesting = nesting;
     }
     
     /**
@@ -43,16 +66,123 @@ public class Response extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(xmlStr));
+        this(XMLDocument.parse(xmlStr).getDocumentElement());
+    }
+    
+    /**
+     * Construct the response by the XML element. The nested request is
+     * read from the embedded element, or parsed from the text if it is
+     * escaped.
+     * @param element the root element of the response.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public Response(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
+        NodeList body = element.getChildNodes();
         String result = body.item(0).getTextContent();
         String lastCH = body.item(1).getTextContent();
-        String reqStr = body.item(2).getTextContent();
+        Node nestedNode = body.item(2);
+        Element nestedElement = getEmbeddedElement(nestedNode);
+        
+        this.result = result;
+        this.lastChainHash = lastCH;
+        this.request = nestedElement != null ? new Request(nestedElement)
+                                             : new Request(nestedNode.getTextContent());
+        this.nesting = nestedElement != null ? Nesting.EMBEDDED : Nesting.ESCAPED;
+    }
+    
+    /**
+     * Construct the response read through StAX.
+     */
+    private Response(String result, String lastCH, Request req, Nesting nesting, Element signature) {
+        super("response", signature);
         
         this.result = result;
         this.lastChainHash = lastCH;
-        this.request = new Request(reqStr);
+        this.request = req;
+        this.nesting = nesting;
+    }
+    
+    /**
+     * Read the response through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static Response read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the response from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static Response read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        String result = reader.readField();
+        String lastCH = reader.readField();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        reader.end();
+        
+        return new Response(result, lastCH, req, nesting, reader.getSignature());
+    }
+    
+    /**
+     * Decode the response from the binary format.
+     * @param bytes the encoded response.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Response fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, Response::read);
+    }
+    
+    /**
+     * Read the response body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Response read(BinaryReader reader) throws IOException {
+        String result = reader.readString();
+        String lastCH = reader.readString();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        return new Response(result, lastCH, req, nesting, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeField("result", result);
+        writer.writeField("chainhash", lastChainHash);
+        writer.writeNested("request", request, nesting);
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeString(result);
+        writer.writeString(lastChainHash);
+        writer.writeNested(request, nesting);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeField(RESULT_FIELD, result);
+        renderer.writeField(CHAIN_HASH_FIELD, lastChainHash);
+        renderer.writeNested(REQUEST_FIELD, request, nesting);
     }
     
     public String getResult() {
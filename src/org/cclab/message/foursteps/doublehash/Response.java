@@ -1,10 +1,19 @@
 package org.cclab.message.foursteps.doublehash;
 
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -13,23 +22,37 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class Response extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("response");
+    private static final MessageTemplate.Field CLIENT_HASH_FIELD = TEMPLATE.field("clienthash");
+    private static final MessageTemplate.Field MAIN_HASH_FIELD = TEMPLATE.field("mainhash");
+    private static final MessageTemplate.Field REQUEST_FIELD = TEMPLATE.field("request");
+    
     private final String clientHash;
     private final String mainHash;
     private final Request request;
+    private final Nesting nesting;
     
     public Response(String clientHash, String mainHash, Request req)
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("response");
+        this(clientHash, mainHash, req, Nesting.ESCAPED);
+    }
+    
+    /**
+     * Construct the response with the nested request in the specified form.
+     * @param nesting how the request is nested.
+     */
+    public Response(String clientHash, String mainHash, Request req, Nesting nesting)
+        throws ParserConfigurationException,
+               DatatypeConfigurationException,
+               TransformerException {
+        super("response", null);
         
         this.clientHash = clientHash;
         this.mainHash = mainHash;
         this.request = req;
-        
-        super.add2Body("clienthash", clientHash);
-        super.add2Body("mainhash", mainHash);
-        super.add2Body("request", req.toXMLString());
+        this.nesting = nesting;
     }
     
     /**
@@ -43,16 +66,123 @@ public class Response extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(str));
+        this(XMLDocument.parse(str).getDocumentElement());
+    }
+    
+    /**
+     * Construct the response by the XML element. The nested request is
+     * read from the embedded element, or parsed from the text if it is
+     * escaped.
+     * @param element the root element of the response.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public Response(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
+        NodeList body = element.getChildNodes();
         String clientHash = body.item(0).getTextContent();
         String mainHash = body.item(1).getTextContent();
-        String reqStr = body.item(2).getTextContent();
+        Node nestedNode = body.item(2);
+        Element nestedElement = getEmbeddedElement(nestedNode);
+        
+        this.clientHash = clientHash;
+        this.mainHash = mainHash;
+        this.request = nestedElement != null ? new Request(nestedElement)
+                                             : new Request(nestedNode.getTextContent());
+        this.nesting = nestedElement != null ? Nesting.EMBEDDED : Nesting.ESCAPED;
+    }
+    
+    /**
+     * Construct the response read through StAX.
+     */
+    private Response(String clientHash, String mainHash, Request req, Nesting nesting, Element signature) {
+        super("response", signature);
         
         this.clientHash = clientHash;
         this.mainHash = mainHash;
-        this.request = new Request(reqStr);
+        this.request = req;
+        this.nesting = nesting;
+    }
+    
+    /**
+     * Read the response through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static Response read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the response from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static Response read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        String clientHash = reader.readField();
+        String mainHash = reader.readField();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        reader.end();
+        
+        return new Response(clientHash, mainHash, req, nesting, reader.getSignature());
+    }
+    
+    /**
+     * Decode the response from the binary format.
+     * @param bytes the encoded response.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Response fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, Response::read);
+    }
+    
+    /**
+     * Read the response body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Response read(BinaryReader reader) throws IOException {
+        String clientHash = reader.readString();
+        String mainHash = reader.readString();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        return new Response(clientHash, mainHash, req, nesting, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeField("clienthash", clientHash);
+        writer.writeField("mainhash", mainHash);
+        writer.writeNested("request", request, nesting);
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeString(clientHash);
+        writer.writeString(mainHash);
+        writer.writeNested(request, nesting);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeField(CLIENT_HASH_FIELD, clientHash);
+        renderer.writeField(MAIN_HASH_FIELD, mainHash);
+        renderer.writeNested(REQUEST_FIELD, request, nesting);
     }
     
     public String getClientHash() {
@@ -1,10 +1,19 @@
 package org.cclab.message.twosteps.chainhash;
 
 import java.io.IOException;
+import java.io.InputStream;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -13,23 +22,37 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class Acknowledgement extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("request");
+    private static final MessageTemplate.Field RESULT_FIELD = TEMPLATE.field("result");
+    private static final MessageTemplate.Field CHAIN_HASH_FIELD = TEMPLATE.field("chainhash");
+    private static final MessageTemplate.Field REQUEST_FIELD = TEMPLATE.field("request");
+    
     private final String result;
     private final String lastChainHash;
     private final Request request;
+    private final Nesting nesting;
     
     public Acknowledgement(String result, String hash, Request req)
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("request");
+        this(result, hash, req, Nesting.ESCAPED);
+    }
+    
+    /**
+     * Construct the acknowledgement with the nested request in the specified form.
+     * @param nesting how the request is nested.
+     */
+    public Acknowledgement(String result, String hash, Request req, Nesting nesting)
+        throws ParserConfigurationException,
+               DatatypeConfigurationException,
+               TransformerException {
+        super("request", null);
         
         this.result = result;
         this.lastChainHash = hash;
         this.request = req;
-        
-        super.add2Body("result", result);
-        super.add2Body("chainhash", lastChainHash);
-        super.add2Body("request", req.toXMLString());
+        this.nesting = nesting;
     }
     
     /**
@@ -43,16 +66,123 @@ public class Acknowledgement extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(str));
+        this(XMLDocument.parse(str).getDocumentElement());
+    }
+    
+    /**
+     * Construct the acknowledgement by the XML element. The nested request is
+     * read from the embedded element, or parsed from the text if it is
+     * escaped.
+     * @param element the root element of the acknowledgement.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public Acknowledgement(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
+        NodeList body = element.getChildNodes();
         String result = body.item(0).getTextContent();
         String chainHash = body.item(1).getTextContent();
-        String reqStr = body.item(2).getTextContent();
+        Node nestedNode = body.item(2);
+        Element nestedElement = getEmbeddedElement(nestedNode);
         
         this.result = result;
         this.lastChainHash = chainHash;
-        this.request = new Request(reqStr);
+        this.request = nestedElement != null ? new Request(nestedElement)
+                                             : new Request(nestedNode.getTextContent());
+        this.nesting = nestedElement != null ? Nesting.EMBEDDED : Nesting.ESCAPED;
+    }
+    
+    /**
+     * Construct the acknowledgement read through StAX.
+     */
+    private Acknowledgement(String result, String lastCH, Request req, Nesting nesting, Element signature) {
+        super("request", signature);
+        
+        this.result = result;
+        this.lastChainHash = lastCH;
+        this.request = req;
+        this.nesting = nesting;
+    }
+    
+    /**
+     * Read the acknowledgement through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static Acknowledgement read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the acknowledgement from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static Acknowledgement read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        String result = reader.readField();
+        String lastCH = reader.readField();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        reader.end();
+        
+        return new Acknowledgement(result, lastCH, req, nesting, reader.getSignature());
+    }
+    
+    /**
+     * Decode the acknowledgement from the binary format.
+     * @param bytes the encoded acknowledgement.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Acknowledgement fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, Acknowledgement::read);
+    }
+    
+    /**
+     * Read the acknowledgement body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Acknowledgement read(BinaryReader reader) throws IOException {
+        String result = reader.readString();
+        String lastCH = reader.readString();
+        Request req = reader.readNested(Request::read);
+        Nesting nesting = reader.getLastNesting();
+        
+        return new Acknowledgement(result, lastCH, req, nesting, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeField("result", result);
+        writer.writeField("chainhash", lastChainHash);
+        writer.writeNested("request", request, nesting);
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeString(result);
+        writer.writeString(lastChainHash);
+        writer.writeNested(request, nesting);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeField(RESULT_FIELD, result);
+        renderer.writeField(CHAIN_HASH_FIELD, lastChainHash);
+        renderer.writeNested(REQUEST_FIELD, request, nesting);
     }
     
     public String getResult() {
@@ -1,11 +1,21 @@
 package org.cclab.message.twosteps.csn;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import org.cclab.Operation;
+import org.cclab.message.BinaryReader;
+import org.cclab.message.BinaryWriter;
+import org.cclab.message.MessageReader;
+import org.cclab.message.MessageTemplate;
+import org.cclab.message.MessageWriter;
 import org.cclab.message.XMLDocument;
+import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -14,6 +24,9 @@ import org.xml.sax.SAXException;
  * @author Scott
  */
 public class Request extends XMLDocument {
+    private static final MessageTemplate TEMPLATE = new MessageTemplate("request");
+    private static final MessageTemplate.Field CSN_FIELD = TEMPLATE.field("CSN");
+    
     private final Operation operation;
     private final Integer consecutiveSequenceNumber;
     
@@ -21,13 +34,10 @@ public class Request extends XMLDocument {
         throws ParserConfigurationException,
                DatatypeConfigurationException,
                TransformerException {
-        super("request");
+        super("request", null);
         
         this.operation = op;
         this.consecutiveSequenceNumber = csn;
-        
-        super.add2Body(operation.toMap());
-        super.add2Body("CSN", consecutiveSequenceNumber.toString());
     }
     
     /**
@@ -41,16 +51,108 @@ public class Request extends XMLDocument {
         throws ParserConfigurationException,
                SAXException,
                IOException {
-        super(XMLDocument.parse(xmlStr));
+        this(XMLDocument.parse(xmlStr).getDocumentElement());
+    }
+    
+    /**
+     * Construct the request by the XML element.
+     * @param element the root element of the request.
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException 
+     */
+    public Request(Element element)
+        throws ParserConfigurationException,
+               SAXException,
+               IOException {
+        super(element);
         
-        NodeList body = super.rootNode.getChildNodes();
-        NodeList operationNode = body.item(0).getChildNodes();
-        String csn = body.item(1).getTextContent();
+        NodeList body = element.getChildNodes();
+        int end = getBodyLength();
+        String csn = body.item(end - 1).getTextContent();
         
-        this.operation = new Operation(operationNode);
+        this.operation = new Operation(body, end - 1);
         this.consecutiveSequenceNumber = Integer.parseInt(csn);
     }
     
+    /**
+     * Construct the request read through StAX.
+     */
+    private Request(Operation op, Integer csn, Element signature) {
+        super("request", signature);
+        
+        this.operation = op;
+        this.consecutiveSequenceNumber = csn;
+    }
+    
+    /**
+     * Read the request through StAX without building a DOM.
+     * @param in the input stream.
+     * @throws XMLStreamException
+     */
+    public static Request read(InputStream in) throws XMLStreamException {
+        return read(MessageReader.of(in));
+    }
+    
+    /**
+     * Read the request from the reader positioned at its root element.
+     * @param reader the reader.
+     * @throws XMLStreamException
+     */
+    public static Request read(MessageReader reader) throws XMLStreamException {
+        reader.start();
+        
+        List<Map.Entry<String, String>> fields = reader.readFields();
+        int end = fields.size();
+        Integer csn = Integer.parseInt(fields.get(end - 1).getValue());
+        
+        return new Request(new Operation(fields.subList(0, end - 1)), csn, reader.getSignature());
+    }
+    
+    /**
+     * Decode the request from the binary format.
+     * @param bytes the encoded request.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Request fromBinary(byte[] bytes) throws IOException {
+        return BinaryReader.readDocument(bytes, Request::read);
+    }
+    
+    /**
+     * Read the request body and its signature in the binary format.
+     * @param reader the reader.
+     * @throws IOException if the bytes are malformed.
+     */
+    public static Request read(BinaryReader reader) throws IOException {
+        Operation op = reader.readOperation();
+        Integer csn = reader.readInt();
+        
+        return new Request(op, csn, reader.readSignature());
+    }
+    
+    @Override
+    protected void writeBody(MessageWriter writer) throws XMLStreamException {
+        writer.writeFields(operation.toMap());
+        writer.writeField("CSN", consecutiveSequenceNumber.toString());
+    }
+    
+    @Override
+    protected void writeBinary(BinaryWriter writer) throws IOException {
+        writer.writeOperation(operation);
+        writer.writeInt(consecutiveSequenceNumber);
+    }
+    
+    @Override
+    protected MessageTemplate getTemplate() {
+        return TEMPLATE;
+    }
+    
+    @Override
+    protected void renderBody(MessageTemplate.Renderer renderer) throws XMLStreamException {
+        renderer.writeFields(operation.toMap());
+        renderer.writeField(CSN_FIELD, consecutiveSequenceNumber.toString());
+    }
+    
     public Operation getOperation() {
         return operation;
     }
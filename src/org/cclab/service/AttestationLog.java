@@ -0,0 +1,703 @@
+package org.cclab.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+import org.cclab.message.MessageReader;
+import org.cclab.message.XMLDocument;
+
+/**
+ * An append-only log of the messages of a protocol, kept for dispute
+ * resolution under increasing sequence numbers. It is a directory of
+ * memory-mapped segments of records
+ * <pre>
+ * int length, long sequence number, int CRC32, length bytes of the message
+ * </pre>
+ * each with a sparse index. A message must not be relied on before
+ * {@link #awaitDurable(long)} returns for it.
+ * @author Scott
+ */
+public class AttestationLog implements Closeable {
+    /**
+     * Receives the records of a range scan.
+     */
+    public interface RecordHandler {
+        /**
+         * Handle one record.
+         * @param sequence the sequence number.
+         * @param bytes the message.
+         * @return false to stop the scan.
+         */
+        boolean handle(long sequence, byte[] bytes);
+    }
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+    
+    private static final Logger LOGGER = Logger.getLogger(AttestationLog.class.getName());
+    private static final int HEADER_LENGTH = 16;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final ConcurrentSkipListMap<Long, Segment> segments;
+    private final Object lock;
+    private final Thread flusher;
+    
+    // guarded by this
+    private Segment active;
+    private boolean appendable;
+    private volatile long lastSequence;
+    
+    // guarded by lock
+    private long requested;
+    private boolean closed;
+    private boolean stopped;
+    private IOException failure;
+    private long flushCount;
+    
+    private volatile long durable;
+    
+    /**
+     * Open a log, recovering the segments in the directory.
+     * @param directory the directory of the segments, created if missing.
+     * @param segmentSize the size of a new segment.
+     * @param indexInterval the bytes between two index entries.
+     * @throws IOException if the segments cannot be opened or read.
+     */
+    public AttestationLog(Path directory, int segmentSize, int indexInterval) throws IOException {
+        if (segmentSize <= HEADER_LENGTH + 4) {
+            throw new IllegalArgumentException("The minimum segment size is " + (HEADER_LENGTH + 5) + ".");
+        } else if (indexInterval <= 0) {
+            throw new IllegalArgumentException("The minimum index interval is 1.");
+        }
+        
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.lastSequence = -1;
+        this.appendable = true;
+        
+        try {
+            recover();
+        } catch (IOException ex) {
+            for (Segment segment: segments.values()) {
+                segment.channel.close();
+            }
+            
+            throw ex;
+        }
+        
+        this.lock = new Object();
+        this.requested = lastSequence;
+        this.durable = lastSequence;
+        this.flusher = new Thread(this::flushLoop, "log-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    public AttestationLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+    }
+    
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file: stream) {
+                files.add(file);
+            }
+        }
+        
+        // names are zero-padded, so they sort by sequence number
+        files.sort(null);
+        
+        for (Path file: files) {
+            String name = file.getFileName().toString();
+            long first = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, first, 0);
+            
+            segments.put(first, segment);
+            segment.loadIndex();
+            segment.scan(lastSequence);
+            
+            if (segment.last >= 0) {
+                lastSequence = segment.last;
+            }
+            
+            active = segment;
+        }
+        
+        // a segment created just before a crash holds nothing
+        if (active != null && active.last < 0) {
+            segments.remove(active.first);
+            active.channel.close();
+            Files.deleteIfExists(active.indexFile());
+            Files.delete(active.file);
+            
+            Map.Entry<Long, Segment> last = segments.lastEntry();
+            
+            active = last == null ? null : last.getValue();
+        }
+    }
+    
+    /**
+     * Append a message.
+     * @param sequence the sequence number, greater than that of the last
+     *        message.
+     * @param bytes the message, which cannot be empty.
+     * @throws IOException if a segment cannot be created or the log is
+     *         closed.
+     * @throws IllegalArgumentException if the sequence number does not
+     *         increase or the message is empty.
+     */
+    public synchronized void append(long sequence, byte[] bytes) throws IOException {
+        if (!appendable) {
+            throw new IOException("The log is closed.");
+        } else if (sequence <= lastSequence || sequence < 0) {
+            throw new IllegalArgumentException("The sequence number must increase: " + sequence);
+        } else if (bytes.length == 0) {
+            throw new IllegalArgumentException("The minimum message length is 1.");
+        }
+        
+        int length = HEADER_LENGTH + bytes.length;
+        
+        if (active == null || active.end + length + 4 > active.capacity) {
+            roll(sequence, length + 4);
+        }
+        
+        active.write(sequence, bytes);
+        lastSequence = sequence;
+    }
+    
+    /**
+     * Append a message in XML.
+     * @param sequence the sequence number.
+     * @param doc the message.
+     * @throws IOException if a segment cannot be created.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    public void append(long sequence, XMLDocument doc) throws IOException, TransformerException {
+        append(sequence, doc.toXMLString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Seal the active segment and start a new one.
+     */
+    private void roll(long sequence, int length) throws IOException {
+        if (active != null) {
+            active.buffer.force();
+            active.saveIndex();
+        }
+        
+        Path file = directory.resolve(String.format("%020d", sequence) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, sequence, Math.max(segmentSize, length));
+        
+        segments.put(sequence, segment);
+        active = segment;
+    }
+    
+    /**
+     * Returns the message of the sequence number, or null.
+     * @param sequence the sequence number.
+     */
+    public byte[] get(long sequence) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(sequence);
+        
+        if (entry == null) {
+            return null;
+        }
+        
+        Segment segment = entry.getValue();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int end = segment.end;
+        
+        for (int position = segment.floor(sequence); position < end;) {
+            int length = buffer.getInt(position);
+            long current = buffer.getLong(position + 4);
+            
+            if (current == sequence) {
+                return segment.read(buffer, position, length);
+            } else if (current > sequence) {
+                break;
+            }
+            
+            position += HEADER_LENGTH + length;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the message of the sequence number parsed from XML, or null.
+     * @param sequence the sequence number.
+     * @param parser the reader of the message, such as Acknowledgement::read.
+     * @throws XMLStreamException if the message cannot be parsed.
+     */
+    public <T extends XMLDocument> T get(long sequence, MessageReader.Parser<T> parser)
+        throws XMLStreamException {
+        byte[] bytes = get(sequence);
+        
+        return bytes == null ? null : parser.read(MessageReader.of(new ByteArrayInputStream(bytes)));
+    }
+    
+    /**
+     * Pass the messages with sequence numbers from from to to, inclusive,
+     * to the handler in order.
+     * @param from the first sequence number.
+     * @param to the last sequence number.
+     * @param handler the handler of the records.
+     * @return the number of records handled.
+     */
+    public long scan(long from, long to, RecordHandler handler) {
+        Long start = segments.floorKey(from);
+        long count = 0;
+        
+        for (Segment segment: segments.tailMap(start == null ? from : start).values()) {
+            if (segment.first > to) {
+                break;
+            }
+            
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int end = segment.end;
+            
+            for (int position = segment.floor(from); position < end;) {
+                int length = buffer.getInt(position);
+                long current = buffer.getLong(position + 4);
+                
+                if (current > to) {
+                    return count;
+                } else if (current >= from) {
+                    count++;
+                    
+                    if (!handler.handle(current, segment.read(buffer, position, length))) {
+                        return count;
+                    }
+                }
+                
+                position += HEADER_LENGTH + length;
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns the sequence number of the last message, or -1.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+    
+    /**
+     * Returns the sequence number of the last message forced to disk, or -1.
+     */
+    public long getDurable() {
+        return durable;
+    }
+    
+    /**
+     * Returns the number of forces by the flusher.
+     */
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+    
+    public int getSegmentCount() {
+        return segments.size();
+    }
+    
+    /**
+     * Wait until the message is forced to disk.
+     * @param sequence the sequence number of an appended message.
+     * @throws IllegalArgumentException if no message has the sequence number
+     *         yet.
+     * @throws IOException if the segment cannot be forced or the log is
+     *         closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitDurable(long sequence) throws IOException, InterruptedException {
+        if (sequence > lastSequence) {
+            throw new IllegalArgumentException("The sequence number has not been appended: " + sequence);
+        } else if (durable >= sequence) {
+            return;
+        }
+        
+        synchronized (lock) {
+            if (sequence > requested) {
+                requested = sequence;
+                lock.notifyAll();
+            }
+            
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new IOException("The log cannot be forced.", failure);
+                } else if (stopped) {
+                    throw new IOException("The log is closed.");
+                }
+                
+                lock.wait();
+            }
+        }
+    }
+    
+    private void flushLoop() {
+        try {
+            for (;;) {
+                synchronized (lock) {
+                    while (!closed && requested <= durable) {
+                        lock.wait();
+                    }
+                    
+                    if (closed && lastSequence <= durable) {
+                        return;
+                    }
+                }
+                
+                long target;
+                Segment segment;
+                
+                // the segments sealed before are forced by roll
+                synchronized (this) {
+                    target = lastSequence;
+                    segment = active;
+                }
+                
+                if (segment != null) {
+                    segment.buffer.force();
+                }
+                
+                synchronized (lock) {
+                    flushCount++;
+                    durable = target;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            // MappedByteBuffer.force reports I/O errors unchecked
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            synchronized (lock) {
+                failure = new IOException(ex);
+                lock.notifyAll();
+            }
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Force the messages, save the index of the active segment and close the
+     * files.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        // no message is appended after the flusher forced the last one
+        synchronized (this) {
+            appendable = false;
+        }
+        
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        synchronized (this) {
+            if (active != null) {
+                active.saveIndex();
+            }
+            
+            for (Segment segment: segments.values()) {
+                segment.channel.close();
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private static long checksum(long sequence, ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequence >>> shift));
+        }
+        
+        crc.update(bytes);
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * One mapped file of the log and its sparse index.
+     */
+    private class Segment {
+        final Path file;
+        final long first;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        
+        // written by the appender, read without a lock below end
+        volatile int end;
+        long last;
+        
+        // guarded by this segment
+        long[] indexSequences;
+        int[] indexPositions;
+        int indexCount;
+        int lastIndexed;
+        
+        /**
+         * Open a segment, or create it with the capacity if it is not 0.
+         */
+        Segment(Path file, long first, int capacity) throws IOException {
+            this.file = file;
+            this.first = first;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+            
+            try {
+                long size = capacity == 0 ? channel.size() : capacity;
+                
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Segment too large: " + file);
+                }
+                
+                this.capacity = (int) size;
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException ex) {
+                channel.close();
+                
+                throw ex;
+            }
+            
+            this.last = -1;
+            this.indexSequences = new long[16];
+            this.indexPositions = new int[16];
+            this.lastIndexed = -indexInterval;
+        }
+        
+        Path indexFile() {
+            String name = file.getFileName().toString();
+            
+            return file.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+        
+        /**
+         * Write a record and the zero length after it.
+         */
+        void write(long sequence, byte[] bytes) {
+            int position = end;
+            ByteBuffer payload = ByteBuffer.wrap(bytes);
+            
+            buffer.putInt(position, bytes.length);
+            buffer.putLong(position + 4, sequence);
+            buffer.putInt(position + 12, (int) checksum(sequence, payload));
+            
+            ByteBuffer target = buffer.duplicate();
+            
+            target.position(position + HEADER_LENGTH);
+            target.put(bytes);
+            
+            int next = position + HEADER_LENGTH + bytes.length;
+            
+            if (next + 4 <= capacity) {
+                buffer.putInt(next, 0);
+            }
+            
+            addIndex(sequence, position);
+            last = sequence;
+            end = next;
+        }
+        
+        byte[] read(ByteBuffer view, int position, int length) {
+            byte[] bytes = new byte[length];
+            
+            view.position(position + HEADER_LENGTH);
+            view.get(bytes);
+            
+            return bytes;
+        }
+        
+        synchronized void addIndex(long sequence, int position) {
+            if (position - lastIndexed < indexInterval) {
+                return;
+            }
+            
+            if (indexCount == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            
+            indexSequences[indexCount] = sequence;
+            indexPositions[indexCount] = position;
+            indexCount++;
+            lastIndexed = position;
+        }
+        
+        /**
+         * Returns the position of the last indexed record at or before the
+         * sequence number, or 0.
+         */
+        synchronized int floor(long sequence) {
+            int index = Arrays.binarySearch(indexSequences, 0, indexCount, sequence);
+            
+            if (index < 0) {
+                index = -index - 2;
+            }
+            
+            return index < 0 ? 0 : indexPositions[index];
+        }
+        
+        /**
+         * Read the records after the loaded index, stopping at the zero
+         * length or the first record that is torn or out of order.
+         */
+        void scan(long previous) {
+            int position = end;
+            long sequence = last >= 0 ? last : previous;
+            
+            while (position + HEADER_LENGTH <= capacity) {
+                int length = buffer.getInt(position);
+                
+                if (length <= 0 || length > capacity - position - HEADER_LENGTH) {
+                    break;
+                }
+                
+                long current = buffer.getLong(position + 4);
+                ByteBuffer payload = buffer.duplicate();
+                
+                payload.limit(position + HEADER_LENGTH + length);
+                payload.position(position + HEADER_LENGTH);
+                
+                if (current <= sequence || current < first
+                    || buffer.getInt(position + 12) != (int) checksum(current, payload)) {
+                    break;
+                }
+                
+                addIndex(current, position);
+                sequence = current;
+                last = current;
+                position += HEADER_LENGTH + length;
+            }
+            
+            end = position;
+        }
+        
+        /**
+         * Save the index as
+         * <pre>
+         * int end, long last, int count, count * (long sequence, int position), long CRC32
+         * </pre>
+         */
+        synchronized void saveIndex() throws IOException {
+            ByteBuffer out = ByteBuffer.allocate(16 + indexCount * 12 + 8);
+            
+            out.putInt(end).putLong(last).putInt(indexCount);
+            
+            for (int i = 0; i < indexCount; i++) {
+                out.putLong(indexSequences[i]).putInt(indexPositions[i]);
+            }
+            
+            CRC32 crc = new CRC32();
+            
+            crc.update(out.array(), 0, out.position());
+            out.putLong(crc.getValue());
+            out.flip();
+            
+            try (FileChannel index = FileChannel.open(indexFile(), StandardOpenOption.CREATE,
+                                                      StandardOpenOption.WRITE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    index.write(out);
+                }
+                
+                index.force(false);
+            }
+        }
+        
+        /**
+         * Load the saved index if it is valid, otherwise the segment is
+         * scanned from the start.
+         */
+        synchronized void loadIndex() throws IOException {
+            Path path = indexFile();
+            
+            if (!Files.exists(path)) {
+                return;
+            }
+            
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            
+            if (in.remaining() < 24) {
+                return;
+            }
+            
+            int savedEnd = in.getInt();
+            long savedLast = in.getLong();
+            int count = in.getInt();
+            
+            if (count < 0 || savedEnd < 0 || savedEnd > capacity || in.remaining() != count * 12 + 8) {
+                return;
+            }
+            
+            CRC32 crc = new CRC32();
+            
+            crc.update(in.array(), 0, in.limit() - 8);
+            
+            if (in.getLong(in.limit() - 8) != crc.getValue()) {
+                return;
+            }
+            
+            indexSequences = new long[Math.max(16, count)];
+            indexPositions = new int[Math.max(16, count)];
+            
+            for (int i = 0; i < count; i++) {
+                indexSequences[i] = in.getLong();
+                indexPositions[i] = in.getInt();
+            }
+            
+            indexCount = count;
+            lastIndexed = count == 0 ? -indexInterval : indexPositions[count - 1];
+            last = savedLast;
+            end = savedEnd;
+        }
+    }
+}
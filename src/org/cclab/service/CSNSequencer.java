@@ -0,0 +1,365 @@
+package org.cclab.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.cclab.message.twosteps.csn.Request;
+
+/**
+ * Issue and check the consecutive sequence numbers of the CSN protocol. A
+ * number is used only below a reserve persisted ahead of it, so a restarted
+ * sequencer never issues a number again. The file holds two slots of
+ * <pre>
+ * long reserve, long CRC32 of reserve
+ * </pre>
+ * written in turn.
+ * @author Scott
+ */
+public class CSNSequencer implements Closeable {
+    /**
+     * The outcome of checking an inbound number.
+     */
+    public enum Check {
+        /**
+         * The number is the next one and is now used.
+         */
+        ACCEPTED,
+        
+        /**
+         * The number is used already.
+         */
+        DUPLICATE,
+        
+        /**
+         * Numbers before it are missing.
+         */
+        GAP
+    }
+    
+    public static final int DEFAULT_BLOCK = 1024;
+    
+    private static final Logger LOGGER = Logger.getLogger(CSNSequencer.class.getName());
+    private static final int SLOT_LENGTH = 16;
+    
+    private final FileChannel channel;
+    private final int block;
+    private final AtomicLong last;
+    private final Object lock;
+    private final Thread flusher;
+    
+    // guarded by lock
+    private long requested;
+    private boolean stopped;
+    private IOException failure;
+    private int slot;
+    private long flushCount;
+    
+    private volatile boolean closed;
+    private volatile long reserved;
+    
+    /**
+     * Open a sequencer, continuing from the reserve in the file if it
+     * exists.
+     * @param file the file of the reserve.
+     * @param block how far the reserve is moved above the numbers used.
+     * @throws IOException if the file cannot be opened or read.
+     */
+    public CSNSequencer(Path file, int block) throws IOException {
+        if (block <= 0) {
+            throw new IllegalArgumentException("The minimum block is 1.");
+        }
+        
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        
+        long recovered;
+        
+        try {
+            recovered = recover();
+        } catch (IOException ex) {
+            channel.close();
+            
+            throw ex;
+        }
+        
+        this.block = block;
+        this.last = new AtomicLong(recovered);
+        this.lock = new Object();
+        this.requested = recovered;
+        this.reserved = recovered;
+        this.flusher = new Thread(this::flushLoop, "csn-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    public CSNSequencer(Path file) throws IOException {
+        this(file, DEFAULT_BLOCK);
+    }
+    
+    /**
+     * Returns the highest valid number in the slots, or 0.
+     */
+    private long recover() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * SLOT_LENGTH);
+        
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        
+        buffer.flip();
+        
+        long number = 0;
+        
+        for (int s = 0; s + SLOT_LENGTH <= buffer.limit(); s += SLOT_LENGTH) {
+            long value = buffer.getLong(s);
+            
+            if (buffer.getLong(s + 8) == checksum(value) && value > number) {
+                number = value;
+                slot = s == 0 ? 1 : 0;
+            }
+        }
+        
+        return number;
+    }
+    
+    private static long checksum(long value) {
+        CRC32 crc = new CRC32();
+        
+        crc.update(ByteBuffer.allocate(8).putLong(value).array());
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * Allocate the next number. It waits only if the number is not below
+     * the reserve on disk yet.
+     * @throws IOException if the reserve cannot be persisted or the
+     *         sequencer is closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public long next() throws IOException, InterruptedException {
+        long csn = last.incrementAndGet();
+        
+        reserve(csn);
+        
+        return csn;
+    }
+    
+    /**
+     * Check an inbound number and use it if it is the next one.
+     * @param csn the number.
+     * @throws IOException if the reserve cannot be persisted or the
+     *         sequencer is closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Check accept(long csn) throws IOException, InterruptedException {
+        for (;;) {
+            long current = last.get();
+            
+            if (csn <= current) {
+                return Check.DUPLICATE;
+            } else if (csn > current + 1) {
+                return Check.GAP;
+            } else if (last.compareAndSet(current, csn)) {
+                reserve(csn);
+                
+                return Check.ACCEPTED;
+            }
+        }
+    }
+    
+    /**
+     * Check the number of a request, see {@link #accept(long)}.
+     * @param req the request.
+     */
+    public Check accept(Request req) throws IOException, InterruptedException {
+        return accept(req.getConsecutiveSequenceNumber());
+    }
+    
+    /**
+     * Wait until the used number is below the reserve on disk, and ask the
+     * flusher to move the reserve when it is within half a block.
+     */
+    private void reserve(long csn) throws IOException, InterruptedException {
+        // read after the counter moved, so close() sees every number returned
+        if (closed) {
+            throw new IOException("The sequencer is closed.");
+        } else if (csn <= reserved - block / 2) {
+            return;
+        }
+        
+        synchronized (lock) {
+            if (csn > requested) {
+                requested = csn;
+                lock.notifyAll();
+            }
+            
+            while (reserved < csn) {
+                if (failure != null) {
+                    throw new IOException("The sequence number cannot be persisted.", failure);
+                } else if (stopped) {
+                    throw new IOException("The sequencer is closed.");
+                }
+                
+                lock.wait();
+            }
+        }
+    }
+    
+    /**
+     * Returns the highest number used.
+     */
+    public long getLast() {
+        return last.get();
+    }
+    
+    /**
+     * Returns the reserve on disk, no number above which has been used.
+     */
+    public long getReserved() {
+        return reserved;
+    }
+    
+    /**
+     * Returns the highest used number persisted.
+     */
+    public long getDurable() {
+        return Math.min(last.get(), reserved);
+    }
+    
+    /**
+     * Returns the number of writes and forces of the file.
+     */
+    public long getFlushCount() {
+        synchronized (lock) {
+            return flushCount;
+        }
+    }
+    
+    /**
+     * Wait until the number is persisted.
+     * @param csn the number, which has been allocated or accepted.
+     * @throws IllegalArgumentException if the number has not been used.
+     * @throws IOException if the reserve cannot be persisted or the
+     *         sequencer is closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitDurable(long csn) throws IOException, InterruptedException {
+        if (csn > last.get()) {
+            throw new IllegalArgumentException("The sequence number has not been used: " + csn);
+        } else if (csn > reserved) {
+            reserve(csn);
+        }
+    }
+    
+    private void flushLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+        
+        try {
+            for (;;) {
+                long target;
+                int position;
+                
+                synchronized (lock) {
+                    while (!closed && requested <= reserved - block / 2) {
+                        lock.wait();
+                    }
+                    
+                    if (closed) {
+                        break;
+                    }
+                    
+                    target = Math.max(requested, last.get()) + block;
+                    position = slot * SLOT_LENGTH;
+                }
+                
+                write(buffer, target, position);
+                
+                synchronized (lock) {
+                    slot ^= 1;
+                    flushCount++;
+                    reserved = target;
+                    lock.notifyAll();
+                }
+            }
+            
+            // no number is used after closed is set, so the reserve can be
+            // lowered; both slots are written, the higher one wins until then
+            long number = last.get();
+            
+            if (number < reserved) {
+                write(buffer, number, slot * SLOT_LENGTH);
+                write(buffer, number, (slot ^ 1) * SLOT_LENGTH);
+                
+                synchronized (lock) {
+                    flushCount += 2;
+                    reserved = number;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            synchronized (lock) {
+                failure = ex;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Write a number and its checksum in the slot at the position and force
+     * it to disk.
+     */
+    private void write(ByteBuffer buffer, long number, int position) throws IOException {
+        buffer.clear();
+        buffer.putLong(number).putLong(checksum(number));
+        buffer.flip();
+        
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        
+        channel.force(false);
+    }
+    
+    /**
+     * Lower the reserve to the highest number used and close the file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        channel.close();
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package org.cclab.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import org.cclab.message.VerificationService;
+import org.cclab.message.twosteps.chainhash.Acknowledgement;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * Audit a log of the acknowledgements of a chain-hash server, in the frames
+ * written by {@link ChainHashServer}. Every acknowledgement must be signed
+ * by the server and hold the chain hash after the one before it, which is
+ * the digest of the previous acknowledgement in XML.
+ *
+ * The log is read as a stream, and the acknowledgements are decoded,
+ * verified and hashed on the workers of a {@link VerificationService}, which
+ * bounds the frames in memory. The chain is checked in the order of the log,
+ * and the audit stops at the first divergence.
+ * @author Scott
+ */
+public class ChainHashAuditor implements Closeable {
+    /**
+     * The kind of a divergence.
+     */
+    public enum Problem {
+        /**
+         * The frame is cut off at the end of the log.
+         */
+        TRUNCATED,
+        
+        /**
+         * The frame cannot be decoded, or its length is not valid.
+         */
+        UNREADABLE,
+        
+        /**
+         * The signature of the server is not valid.
+         */
+        INVALID_SIGNATURE,
+        
+        /**
+         * The last chain hash is not the digest of the previous
+         * acknowledgement.
+         */
+        BROKEN_CHAIN
+    }
+    
+    /**
+     * The first acknowledgement that fails the audit.
+     */
+    public static class Divergence {
+        private final Problem problem;
+        private final long index;
+        private final long offset;
+        private final String expected;
+        private final String actual;
+        private final Exception error;
+        
+        Divergence(Problem problem, long index, long offset, String expected, String actual,
+                   Exception error) {
+            this.problem = problem;
+            this.index = index;
+            this.offset = offset;
+            this.expected = expected;
+            this.actual = actual;
+            this.error = error;
+        }
+        
+        public Problem getProblem() {
+            return problem;
+        }
+        
+        /**
+         * Returns the position of the acknowledgement in the log, from 0.
+         */
+        public long getIndex() {
+            return index;
+        }
+        
+        /**
+         * Returns the byte offset of its frame in the log.
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the chain hash it should hold.
+         */
+        public String getExpectedChainHash() {
+            return expected;
+        }
+        
+        /**
+         * Returns the chain hash it holds, or null if it cannot be decoded.
+         */
+        public String getActualChainHash() {
+            return actual;
+        }
+        
+        /**
+         * Returns the error raised by reading, decoding or verifying, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+        
+        @Override
+        public String toString() {
+            return problem + " at #" + index + " (offset " + offset + ")";
+        }
+    }
+    
+    /**
+     * The outcome of an audit.
+     */
+    public static class Report {
+        private final long count;
+        private final String lastChainHash;
+        private final Divergence divergence;
+        private final long elapsedNanos;
+        
+        Report(long count, String lastChainHash, Divergence divergence, long elapsedNanos) {
+            this.count = count;
+            this.lastChainHash = lastChainHash;
+            this.divergence = divergence;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        /**
+         * Returns the number of acknowledgements that passed.
+         */
+        public long getCount() {
+            return count;
+        }
+        
+        /**
+         * Returns the chain hash after the last acknowledgement that passed.
+         */
+        public String getLastChainHash() {
+            return lastChainHash;
+        }
+        
+        /**
+         * Returns true if the whole log passed.
+         */
+        public boolean isValid() {
+            return divergence == null;
+        }
+        
+        /**
+         * Returns the first divergence, or null.
+         */
+        public Divergence getDivergence() {
+            return divergence;
+        }
+        
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+        
+        /**
+         * Returns the acknowledgements passed per second.
+         */
+        public double getMessagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+        }
+    }
+    
+    private static final HashFunction HASH_FUNCTION = HashFunction.SHA256;
+    private static final int HEADER_LENGTH = 4;
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    
+    private final VerificationService verifier;
+    private final ChainHashServer.Format format;
+    private final int maxFrameLength;
+    private final int maxPending;
+    
+    private volatile long audited;
+    
+    /**
+     * Construct an auditor.
+     * @param publicKey the public key of the server.
+     * @param format the format of the frames.
+     * @param threads the number of worker threads.
+     * @param maxPending the maximum number of frames in memory.
+     * @param maxFrameLength the maximum length of a frame.
+     */
+    public ChainHashAuditor(PublicKey publicKey, ChainHashServer.Format format, int threads, int maxPending,
+                            int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("The minimum frame length is 1.");
+        }
+        
+        this.verifier = new VerificationService(publicKey, threads, maxPending);
+        this.format = format;
+        this.maxFrameLength = maxFrameLength;
+        this.maxPending = maxPending;
+    }
+    
+    /**
+     * Construct an auditor with a worker per processor and default limits.
+     */
+    public ChainHashAuditor(PublicKey publicKey, ChainHashServer.Format format) {
+        this(publicKey, format, Runtime.getRuntime().availableProcessors(),
+             VerificationService.DEFAULT_MAX_PENDING, ChainHashServer.DEFAULT_MAX_FRAME_LENGTH);
+    }
+    
+    /**
+     * Audit a log file from the initial chain hash of the server.
+     * @param log the log.
+     * @throws IOException if the log cannot be read.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Report audit(Path log) throws IOException, InterruptedException {
+        try (InputStream in = Files.newInputStream(log)) {
+            return audit(in, ChainHashServer.INITIAL_CHAIN_HASH);
+        }
+    }
+    
+    /**
+     * Audit a log.
+     * @param in the log, which is not closed.
+     * @param initialChainHash the chain hash before the first
+     *        acknowledgement.
+     * @throws IOException if the log cannot be read.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Report audit(InputStream in, String initialChainHash) throws IOException, InterruptedException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, INPUT_BUFFER_SIZE));
+        ArrayDeque<Entry> inFlight = new ArrayDeque<>(maxPending);
+        Chain chain = new Chain(initialChainHash);
+        long start = System.nanoTime();
+        long offset = 0;
+        long index = 0;
+        Entry unread = null;
+        Problem problem = null;
+        IOException error = null;
+        
+        audited = 0;
+        
+        while (chain.divergence == null) {
+            Entry entry = new Entry(index, offset);
+            byte[] frame;
+            
+            try {
+                int first = data.read();
+                
+                if (first < 0) {
+                    break;
+                }
+                
+                int length = first << 24 | data.readUnsignedByte() << 16 | data.readUnsignedShort();
+                
+                if (length < 0 || length > maxFrameLength) {
+                    unread = entry;
+                    problem = Problem.UNREADABLE;
+                    error = new IOException("Invalid frame length: " + length);
+                    
+                    break;
+                }
+                
+                frame = new byte[length];
+                data.readFully(frame);
+            } catch (EOFException ex) {
+                unread = entry;
+                problem = Problem.TRUNCATED;
+                error = ex;
+                
+                break;
+            }
+            
+            entry.future = verifier.submit(index, frame, bytes -> decode(entry, bytes));
+            inFlight.add(entry);
+            
+            index++;
+            offset += HEADER_LENGTH + frame.length;
+            
+            while (!inFlight.isEmpty() && (inFlight.peek().future.isDone() || inFlight.size() >= maxPending)) {
+                chain.check(inFlight.poll());
+            }
+        }
+        
+        while (!inFlight.isEmpty()) {
+            chain.check(inFlight.poll());
+        }
+        
+        // the frames before the unread one come first
+        if (unread != null && chain.divergence == null) {
+            chain.diverge(problem, unread, null, error);
+        }
+        
+        return new Report(chain.count, chain.expected, chain.divergence, System.nanoTime() - start);
+    }
+    
+    private Acknowledgement decode(Entry entry, byte[] bytes) throws Exception {
+        Acknowledgement ack;
+        byte[] xml;
+        
+        if (format == ChainHashServer.Format.XML) {
+            ack = Acknowledgement.read(new ByteArrayInputStream(bytes));
+            xml = bytes;
+        } else {
+            ack = Acknowledgement.fromBinary(bytes);
+            xml = ack.toXMLString().getBytes(StandardCharsets.UTF_8);
+        }
+        
+        entry.digest = HashUtils.byte2hex(HASH_FUNCTION.hash(xml));
+        
+        return ack;
+    }
+    
+    /**
+     * Returns the number of acknowledgements that passed so far in the
+     * current audit.
+     */
+    public long getAuditedCount() {
+        return audited;
+    }
+    
+    /**
+     * Stop the workers.
+     */
+    @Override
+    public void close() {
+        verifier.close();
+    }
+    
+    /**
+     * A frame in progress. The digest is written by a worker before the
+     * future completes.
+     */
+    private static class Entry {
+        final long index;
+        final long offset;
+        CompletableFuture<VerificationService.Result<Acknowledgement>> future;
+        String digest;
+        
+        Entry(long index, long offset) {
+            this.index = index;
+            this.offset = offset;
+        }
+    }
+    
+    /**
+     * The chain check, in the order of the log.
+     */
+    private class Chain {
+        String expected;
+        long count;
+        Divergence divergence;
+        
+        Chain(String initialChainHash) {
+            this.expected = initialChainHash;
+        }
+        
+        void check(Entry entry) {
+            VerificationService.Result<Acknowledgement> result = entry.future.join();
+            
+            if (divergence != null) {
+                return;
+            }
+            
+            Acknowledgement ack = result.getMessage();
+            
+            if (ack == null) {
+                diverge(Problem.UNREADABLE, entry, null, result.getError());
+            } else if (!result.isValid()) {
+                diverge(Problem.INVALID_SIGNATURE, entry, ack.getLastChainHash(), result.getError());
+            } else if (!expected.equals(ack.getLastChainHash())) {
+                diverge(Problem.BROKEN_CHAIN, entry, ack.getLastChainHash(), null);
+            } else {
+                expected = entry.digest;
+                count++;
+                audited = count;
+            }
+        }
+        
+        void diverge(Problem problem, Entry entry, String actual, Exception error) {
+            divergence = new Divergence(problem, entry.index, entry.offset, expected, actual, error);
+        }
+    }
+}
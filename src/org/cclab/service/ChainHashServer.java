@@ -0,0 +1,511 @@
+package org.cclab.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.cclab.Operation;
+import org.cclab.message.twosteps.chainhash.Acknowledgement;
+import org.cclab.message.twosteps.chainhash.Request;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * A non-blocking server of the two-step chain-hash protocol. Messages are
+ * sent in frames of an int length and the message, and requests may be
+ * pipelined. A failed request closes its connection after the
+ * acknowledgements before it.
+ * @author Scott
+ */
+public class ChainHashServer implements Closeable {
+    /**
+     * Applies the operation of a request on the service.
+     */
+    public interface OperationHandler {
+        /**
+         * Apply the operation.
+         * @return the result in the acknowledgement.
+         * @throws Exception if the operation fails, which fails the
+         *         connection.
+         */
+        String apply(Operation operation) throws Exception;
+    }
+    
+    /**
+     * The encoding of messages in frames.
+     */
+    public enum Format {
+        /**
+         * XML in UTF-8, as written by toXMLString.
+         */
+        XML,
+        
+        /**
+         * The binary format, as written by toBinary.
+         */
+        BINARY
+    }
+    
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 24;
+    public static final int DEFAULT_MAX_PIPELINED = 64;
+    
+    /**
+     * The chain hash before the first request.
+     */
+    public static final String INITIAL_CHAIN_HASH = HashUtils.byte2hex(new byte[HashFunction.DIGEST_LENGTH]);
+    
+    private static final Logger LOGGER = Logger.getLogger(ChainHashServer.class.getName());
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    private static final int HEADER_LENGTH = 4;
+    
+    private final KeyPair keyPair;
+    private final OperationHandler handler;
+    private final Format format;
+    private final int maxFrameLength;
+    private final int maxPipelined;
+    
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService sequencer;
+    private final Thread ioThread;
+    private final Set<Connection> connections;
+    private final Queue<Connection> replied;
+    private final AtomicLong processed;
+    
+    private volatile boolean closed;
+    
+    // accessed by the sequencer only
+    private String lastChainHash;
+    
+    /**
+     * Start a server.
+     * @param address the address to listen on, whose port may be 0.
+     * @param keyPair the key pair signing the acknowledgements.
+     * @param handler the handler of operations.
+     * @param format the encoding of messages.
+     * @param maxFrameLength the maximum length of a request.
+     * @param maxPipelined the maximum number of unanswered requests of a
+     *        connection.
+     * @param lastChainHash the chain hash before the first request.
+     * @throws IOException if the address cannot be bound.
+     */
+    public ChainHashServer(SocketAddress address, KeyPair keyPair, OperationHandler handler, Format format,
+                           int maxFrameLength, int maxPipelined, String lastChainHash)
+        throws IOException {
+        if (maxFrameLength <= 0 || maxPipelined <= 0) {
+            throw new IllegalArgumentException("The minimum value for frame length and pipelined requests is 1.");
+        }
+        
+        this.keyPair = keyPair;
+        this.handler = handler;
+        this.format = format;
+        this.maxFrameLength = maxFrameLength;
+        this.maxPipelined = maxPipelined;
+        this.lastChainHash = lastChainHash;
+        this.connections = new HashSet<>();
+        this.replied = new ConcurrentLinkedQueue<>();
+        this.processed = new AtomicLong();
+        
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            serverChannel.close();
+            selector.close();
+            
+            throw ex;
+        }
+        
+        this.sequencer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chainhash-sequencer");
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        this.ioThread = new Thread(this::run, "chainhash-server");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+    
+    /**
+     * Start a server with default limits and chain hash.
+     */
+    public ChainHashServer(SocketAddress address, KeyPair keyPair, OperationHandler handler, Format format)
+        throws IOException {
+        this(address, keyPair, handler, format, DEFAULT_MAX_FRAME_LENGTH, DEFAULT_MAX_PIPELINED,
+             INITIAL_CHAIN_HASH);
+    }
+    
+    /**
+     * Returns the address the server listens on.
+     * @throws IOException
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+    
+    /**
+     * Returns the number of acknowledged requests.
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+    
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                
+                for (Connection connection; (connection = replied.poll()) != null;) {
+                    connection.write();
+                }
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    
+                    keys.remove();
+                    
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        } finally {
+            for (Connection connection: new ArrayDeque<>(connections)) {
+                connection.close();
+            }
+            
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel;
+        
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            
+            Connection connection = new Connection(channel);
+            
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+    
+    /**
+     * Acknowledge one request, called by the sequencer.
+     */
+    private void process(Connection connection, byte[] frame) {
+        // nobody would receive the acknowledgement, so the chain is left alone
+        if (connection.failed || !connection.channel.isOpen()) {
+            return;
+        }
+        
+        try {
+            Request req = format == Format.XML ? Request.read(new ByteArrayInputStream(frame))
+                                               : Request.fromBinary(frame);
+            String result = handler.apply(req.getOperation());
+            Acknowledgement ack = new Acknowledgement(result, lastChainHash, req);
+            
+            if (!ack.sign(keyPair)) {
+                throw new IllegalStateException("cannot sign the acknowledgement");
+            }
+            
+            byte[] xml = ack.toXMLString().getBytes(StandardCharsets.UTF_8);
+            byte[] reply = format == Format.XML ? xml : ack.toBinary();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + reply.length);
+            
+            buffer.putInt(reply.length).put(reply);
+            buffer.flip();
+            
+            lastChainHash = HashUtils.byte2hex(HashFunction.SHA256.hash(xml));
+            processed.incrementAndGet();
+            
+            connection.replies.add(buffer);
+        } catch (Exception ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            
+            fail(connection);
+            
+            return;
+        }
+        
+        replied.add(connection);
+        selector.wakeup();
+    }
+    
+    /**
+     * Fail a connection after the requests submitted before, called by the
+     * sequencer.
+     */
+    private void fail(Connection connection) {
+        connection.failed = true;
+        
+        replied.add(connection);
+        selector.wakeup();
+    }
+    
+    /**
+     * Stop accepting and close all connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        
+        try {
+            ioThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        sequencer.shutdown();
+        
+        try {
+            sequencer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * The state of a client connection, owned by the I/O thread but for
+     * replies and failed.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final Queue<ByteBuffer> replies;
+        final ArrayDeque<ByteBuffer> outgoing;
+        SelectionKey key;
+        ByteBuffer input;
+        int pending;
+        boolean endOfInput;
+        volatile boolean failed;
+        
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.replies = new ConcurrentLinkedQueue<>();
+            this.outgoing = new ArrayDeque<>();
+            this.input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        }
+        
+        void read() {
+            try {
+                int count;
+                
+                while ((count = channel.read(input)) > 0) {
+                    if (!readFrames()) {
+                        return;
+                    }
+                }
+                
+                if (count < 0) {
+                    endOfInput = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    closeIfDone();
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+                
+                close();
+            }
+        }
+        
+        /**
+         * Submit the complete frames in the input buffer, until maxPipelined
+         * requests are pending. It stops reading when the limit is reached.
+         * @return false if more input cannot be read now.
+         */
+        boolean readFrames() {
+            input.flip();
+            
+            try {
+                while (pending < maxPipelined && input.remaining() >= HEADER_LENGTH) {
+                    int length = input.getInt(input.position());
+                    
+                    if (length < 0 || length > maxFrameLength) {
+                        LOGGER.log(Level.WARNING, "Invalid frame length {0} from {1}",
+                                   new Object[] {length, channel.socket().getRemoteSocketAddress()});
+                        
+                        endOfInput = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        
+                        try {
+                            sequencer.execute(() -> fail(this));
+                        } catch (RejectedExecutionException ex) {
+                            close();
+                        }
+                        
+                        return false;
+                    } else if (input.remaining() < HEADER_LENGTH + length) {
+                        break;
+                    }
+                    
+                    byte[] frame = new byte[length];
+                    
+                    input.position(input.position() + HEADER_LENGTH);
+                    input.get(frame);
+                    
+                    pending++;
+                    
+                    try {
+                        sequencer.execute(() -> process(this, frame));
+                    } catch (RejectedExecutionException ex) {
+                        close();
+                        
+                        return false;
+                    }
+                }
+            } finally {
+                input.compact();
+            }
+            
+            if (pending >= maxPipelined) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                
+                return false;
+            }
+            
+            // a frame larger than the buffer
+            if (!input.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2,
+                                                                 HEADER_LENGTH + maxFrameLength));
+                
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            
+            return true;
+        }
+        
+        void write() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            
+            // read first, so every reply before the failure is taken below
+            boolean done = failed;
+            
+            for (ByteBuffer reply; (reply = replies.poll()) != null;) {
+                outgoing.add(reply);
+            }
+            
+            try {
+                int written = 0;
+                
+                while (!outgoing.isEmpty()) {
+                    channel.write(outgoing.toArray(new ByteBuffer[outgoing.size()]));
+                    
+                    while (!outgoing.isEmpty() && !outgoing.peek().hasRemaining()) {
+                        outgoing.poll();
+                        written++;
+                    }
+                    
+                    if (!outgoing.isEmpty()) {
+                        break;
+                    }
+                }
+                
+                if (done && outgoing.isEmpty()) {
+                    close();
+                    
+                    return;
+                }
+                
+                key.interestOps(outgoing.isEmpty() ? key.interestOps() & ~SelectionKey.OP_WRITE
+                                                   : key.interestOps() | SelectionKey.OP_WRITE);
+                
+                if (written > 0) {
+                    resume(written);
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+                
+                close();
+            }
+        }
+        
+        /**
+         * Read the frames held back while the connection was at its limit.
+         */
+        private void resume(int written) {
+            boolean wasFull = pending >= maxPipelined;
+            
+            pending -= written;
+            
+            if (wasFull && pending < maxPipelined && !endOfInput && !failed && readFrames()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            
+            closeIfDone();
+        }
+        
+        private void closeIfDone() {
+            if (endOfInput && pending == 0 && outgoing.isEmpty()) {
+                close();
+            }
+        }
+        
+        void close() {
+            connections.remove(this);
+            key.cancel();
+            
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.cclab.service;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import org.cclab.utility.HashFunction;
+
+/**
+ * A source of per-directory digest listings of a MerkleTree. It can be a
+ * local tree or a remote one whose listings are fetched on demand.
+ *
+ * @author Scott
+ * @see MerkleTreeDiff
+ */
+public interface DigestListing {
+    /**
+     * Returns the format of the directory digests.
+     */
+    public MerkleTree.DigestFormat getDigestFormat();
+    
+    /**
+     * Returns the hash function of files and directories.
+     */
+    public HashFunction getHashFunction();
+    
+    /**
+     * Returns the size of the chunks files larger than it are digested by,
+     * or 0 if every file is digested as a whole.
+     */
+    public int getChunkSize();
+    
+    /**
+     * Returns the digest of the root.
+     * @throws IOException if the digest cannot be fetched.
+     */
+    public byte[] getRootDigestBytes() throws IOException;
+    
+    /**
+     * Returns the children of the specified directory, ordered by name.
+     * @param path names separated by File.separator, relative to root.
+     * @throws NoSuchElementException if the path is not a directory.
+     * @throws IOException if the listing cannot be fetched.
+     */
+    public List<Entry> listDigests(String path) throws NoSuchElementException, IOException;
+    
+    /**
+     * One child in a directory listing.
+     */
+    public static class Entry implements Serializable {
+        private final String name;
+        private final byte[] digest;
+        private final boolean directory;
+        
+        public Entry(String name, byte[] digest, boolean directory) {
+            this.name = name;
+            this.digest = digest;
+            this.directory = directory;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public byte[] getDigest() {
+            return digest;
+        }
+        
+        public boolean isDirectory() {
+            return directory;
+        }
+    }
+}
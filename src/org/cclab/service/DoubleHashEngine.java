@@ -0,0 +1,217 @@
+package org.cclab.service;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.cclab.message.foursteps.doublehash.Request;
+import org.cclab.message.foursteps.doublehash.Response;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * The state of the service provider in the double-hash protocol: a running
+ * hash per client and a main hash over the updates of all clients.
+ * <pre>
+ * clientHash = H(clientHash || H(request))
+ * mainHash   = H(mainHash || clientHash)
+ * </pre>
+ * Both start from 32 zero bytes.
+ *
+ * The client hashes are kept in stripes, each locked on its own, so requests
+ * of clients in different stripes are hashed in parallel. Every new client
+ * hash is then folded into the main hash by a single sequencer thread, in
+ * the order in which the client hashes were made, so the updates of one
+ * client enter the main hash in their own order.
+ * @author Scott
+ */
+public class DoubleHashEngine implements Closeable {
+    public static final int DEFAULT_STRIPES = 64;
+    
+    private static final HashFunction HASH_FUNCTION = HashFunction.SHA256;
+    private static final byte[] INITIAL_HASH = new byte[HashFunction.DIGEST_LENGTH];
+    
+    /**
+     * The hashes after one request.
+     */
+    public static class Update {
+        private final String clientID;
+        private final byte[] clientHash;
+        private byte[] mainHash;
+        private long sequence;
+        
+        Update(String clientID, byte[] clientHash) {
+            this.clientID = clientID;
+            this.clientHash = clientHash;
+        }
+        
+        public String getClientID() {
+            return clientID;
+        }
+        
+        /**
+         * Returns the position of the update in the main hash, from 1.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+        
+        public String getClientHash() {
+            return HashUtils.byte2hex(clientHash);
+        }
+        
+        public String getMainHash() {
+            return HashUtils.byte2hex(mainHash);
+        }
+    }
+    
+    private final Stripe[] stripes;
+    private final ExecutorService sequencer;
+    
+    // written by the sequencer only
+    private volatile byte[] mainHash;
+    private volatile long sequence;
+    
+    /**
+     * Construct an engine.
+     * @param stripes the number of stripes, rounded up to a power of two.
+     */
+    public DoubleHashEngine(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The minimum number of stripes is 1.");
+        }
+        
+        int size = 1;
+        
+        while (size < stripes) {
+            size <<= 1;
+        }
+        
+        this.stripes = new Stripe[size];
+        
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        
+        this.sequencer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "doublehash-sequencer");
+            
+            thread.setDaemon(true);
+            
+            return thread;
+        });
+        this.mainHash = INITIAL_HASH;
+    }
+    
+    public DoubleHashEngine() {
+        this(DEFAULT_STRIPES);
+    }
+    
+    /**
+     * Chain a request digest into the hash of its client and fold the new
+     * client hash into the main hash.
+     * @param clientID the client.
+     * @param digest the digest of the request.
+     * @return the future completed when the main hash holds the update.
+     * @throws RejectedExecutionException if the engine is closed, in which
+     *         case the client hash is not changed.
+     */
+    public CompletableFuture<Update> update(String clientID, byte[] digest) {
+        Stripe stripe = stripes[stripeOf(clientID)];
+        CompletableFuture<Update> future = new CompletableFuture<>();
+        
+        // submitted under the lock so that the updates of a client are folded in order
+        synchronized (stripe) {
+            byte[] clientHash = stripe.hashes.getOrDefault(clientID, INITIAL_HASH);
+            Update update = new Update(clientID, HASH_FUNCTION.hash(clientHash, digest));
+            
+            // stored only once the sequencer takes it, so a rejected update leaves no trace
+            sequencer.execute(() -> fold(update, future));
+            stripe.hashes.put(clientID, update.clientHash);
+        }
+        
+        return future;
+    }
+    
+    private void fold(Update update, CompletableFuture<Update> future) {
+        update.mainHash = HASH_FUNCTION.hash(mainHash, update.clientHash);
+        update.sequence = sequence + 1;
+        
+        mainHash = update.mainHash;
+        sequence = update.sequence;
+        
+        future.complete(update);
+    }
+    
+    /**
+     * Update the hashes with a request and make the response, which is not
+     * signed. It waits until the main hash holds the update.
+     * @param req the request.
+     * @return the response holding the new client hash and main hash.
+     * @throws TransformerException raised if XML transfer failed.
+     */
+    public Response respond(Request req) throws TransformerException {
+        byte[] digest = HASH_FUNCTION.hash(req.toXMLString().getBytes(StandardCharsets.UTF_8));
+        Update update = update(req.getClientID(), digest).join();
+        
+        try {
+            return new Response(update.getClientHash(), update.getMainHash(), req);
+        } catch (ParserConfigurationException | DatatypeConfigurationException ex) {
+            throw new TransformerException(ex);
+        }
+    }
+    
+    /**
+     * Returns the hash of the client, which may not be in the main hash yet.
+     */
+    public String getClientHash(String clientID) {
+        Stripe stripe = stripes[stripeOf(clientID)];
+        
+        synchronized (stripe) {
+            return HashUtils.byte2hex(stripe.hashes.getOrDefault(clientID, INITIAL_HASH));
+        }
+    }
+    
+    public String getMainHash() {
+        return HashUtils.byte2hex(mainHash);
+    }
+    
+    /**
+     * Returns the number of updates in the main hash.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+    
+    private int stripeOf(String clientID) {
+        int h = clientID.hashCode();
+        
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+    
+    /**
+     * Stop the sequencer after the submitted updates are folded.
+     */
+    @Override
+    public void close() {
+        sequencer.shutdown();
+        
+        try {
+            sequencer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static class Stripe {
+        final Map<String, byte[]> hashes = new HashMap<>();
+    }
+}
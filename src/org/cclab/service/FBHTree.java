@@ -2,9 +2,11 @@ package org.cclab.service;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import org.cclab.utility.HashFunction;
 import org.cclab.utility.HashUtils;
 
 /**
@@ -15,12 +17,14 @@ import org.cclab.utility.HashUtils;
 public class FBHTree implements Serializable {
     private static final int DEFAULT_TREE_HEIGHT = 17;
     private static final boolean DEFAULT_ENABLED_LAZY_UPDATE = false;
+    private static final HashFunction DEFAULT_HASH_FUNCTION = HashFunction.SHA256;
     
     private static final char SLICE_DELIMITER = '.';
     private static final int ESTIMATED_SLICE_LENGTH = 8192;
     
     private final int height;
     private final boolean lazyUpdate;
+    private final HashFunction hashFunction;
     private final Node[] nodes;
     private int size;
     
@@ -33,22 +37,38 @@ public class FBHTree implements Serializable {
      *         smaller than 1
      */
     public FBHTree(int treeHeight, boolean enableLazyUpdate) {
+        this(treeHeight, enableLazyUpdate, DEFAULT_HASH_FUNCTION);
+    }
+    
+    /**
+     * Construct a FBHTree with initial tree height and hash function.
+     * @param treeHeight the initial tree height
+     * @param enableLazyUpdate specified whether the root hash re-calculates
+     *         when any leaf node is updated without being read.
+     * @param hashFunction the hash function of keys and nodes
+     * @throws IllegalArgumentException if the specified initial tree height is
+     *         smaller than 1
+     */
+    public FBHTree(int treeHeight, boolean enableLazyUpdate, HashFunction hashFunction) {
         if (treeHeight <= 0) {
             throw new IllegalArgumentException("The minimum value for tree height is 1.");
         }
         
         this.height = treeHeight;
         this.lazyUpdate = enableLazyUpdate;
+        this.hashFunction = hashFunction;
         this.nodes = new Node[1 << height];
         this.size = 0;
         
         for (int i = nodes.length - 1; i > 0; i--) {
             if (i >= (1 << (height - 1))) { // leaf node
-                nodes[i] = new Node(i, null, null, lazyUpdate);
+                nodes[i] = new Node(i, null, null, lazyUpdate, hashFunction);
             } else { // internal node
-                nodes[i] = new Node(i, nodes[i * 2], nodes[(i * 2) + 1], lazyUpdate);
+                nodes[i] = new Node(i, nodes[i * 2], nodes[(i * 2) + 1], lazyUpdate, hashFunction);
             }
         }
+        
+        updateDirtyNodes();
     }
     
     /**
@@ -70,7 +90,7 @@ public class FBHTree implements Serializable {
      * @return slot index
      */
     private int calcLeafIndex(String key) {
-        byte[] digest = HashUtils.sha256(key.getBytes());
+        byte[] digest = hashFunction.hash(key.getBytes());
         int index = 0;
         
         if (digest.length >= 4) {
@@ -132,7 +152,77 @@ public class FBHTree implements Serializable {
      * Returns the root hash of this FBHTree.
      */
     public byte[] getRootHash() {
-        return nodes[1].getContentDigest();
+        updateDirtyNodes();
+        
+        return nodes[1].getContentDigest().clone();
+    }
+    
+    /**
+     * Re-calculate the digests of all dirty nodes level by level, from the
+     * leaves up to the root. The dirty internal nodes of each level are
+     * hashed by one batch call.
+     */
+    private void updateDirtyNodes() {
+        List<int[]> levels = new ArrayList<>(height);
+        int[] level = nodes[1].isDirty() ? new int[] { 1 } : new int[0];
+        
+        // collect dirty nodes top-down, a dirty node always has dirty ancestors
+        while (level.length > 0) {
+            levels.add(level);
+            
+            if (nodes[level[0]].isLeaf) {
+                break;
+            }
+            
+            int[] next = new int[level.length * 2];
+            int count = 0;
+            
+            for (int index: level) {
+                for (int child = index * 2; child <= index * 2 + 1; child++) {
+                    if (nodes[child].isDirty()) {
+                        next[count++] = child;
+                    }
+                }
+            }
+            
+            level = Arrays.copyOf(next, count);
+        }
+        
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            level = levels.get(l);
+            
+            if (nodes[level[0]].isLeaf) {
+                for (int index: level) {
+                    nodes[index].getContentDigest();
+                }
+                
+                continue;
+            }
+            
+            int digestLength = HashFunction.DIGEST_LENGTH;
+            byte[] input = new byte[level.length * 2 * digestLength];
+            byte[] output = new byte[level.length * digestLength];
+            
+            for (int i = 0; i < level.length; i++) {
+                Node node = nodes[level[i]];
+                
+                System.arraycopy(node.leftChild.contentDigest, 0, input, 2 * i * digestLength, digestLength);
+                System.arraycopy(node.rightChild.contentDigest, 0, input, (2 * i + 1) * digestLength, digestLength);
+            }
+            
+            hashFunction.hashPairs(input, 0, output, 0, level.length);
+            
+            for (int i = 0; i < level.length; i++) {
+                Node node = nodes[level[i]];
+                
+                System.arraycopy(output, i * digestLength, node.contentDigest, 0, digestLength);
+                node.dirty = false;
+            }
+        }
+    }
+    
+    public HashFunction getHashFunction() {
+        return hashFunction;
     }
     
     /**
@@ -154,30 +244,25 @@ public class FBHTree implements Serializable {
             throw new NoSuchElementException("The specified key does not exist in this FBHTree");
         }
         
+        updateDirtyNodes();
+        
         int index = calcLeafIndex(key);
-        String leftHexStr, rightHexStr;
+        int leftIndex;
         StringBuilder sliceBuilder = new StringBuilder(ESTIMATED_SLICE_LENGTH);
         
         sliceBuilder.append(index).append(SLICE_DELIMITER);
         
         // internal nodes
         for (; index > 1; index /= 2) {
-            leftHexStr = rightHexStr = nodes[index].getContentDigestHexString();
-            
-            if (index % 2 == 0) {
-                rightHexStr = nodes[index + 1].getContentDigestHexString();
-            } else {
-                leftHexStr = nodes[index - 1].getContentDigestHexString();
-            }
+            leftIndex = index & ~1;
             
-            sliceBuilder
-                    .append(leftHexStr)
-                    .append(SLICE_DELIMITER)
-                    .append(rightHexStr)
+            HashUtils.appendHex(sliceBuilder, nodes[leftIndex].getContentDigest())
+                    .append(SLICE_DELIMITER);
+            HashUtils.appendHex(sliceBuilder, nodes[leftIndex + 1].getContentDigest())
                     .append(SLICE_DELIMITER);
         }
         
-        sliceBuilder.append(nodes[1].getContentDigestHexString());
+        HashUtils.appendHex(sliceBuilder, nodes[1].getContentDigest());
         
         return sliceBuilder.toString();
     }
@@ -190,19 +275,37 @@ public class FBHTree implements Serializable {
      *         the left child and the right child.
      */
     public static byte[] evalRootHashFromSlice(String slice) {
+        return evalRootHashFromSlice(slice, DEFAULT_HASH_FUNCTION);
+    }
+    
+    /**
+     * Parse and evaluate the root hash of the given slice with the specified
+     * hash function.
+     * 
+     * @return byte array of the root hash of the given slice
+     * @throws VerifyError if any parent digest does not match to the digest of
+     *         the left child and the right child.
+     */
+    public static byte[] evalRootHashFromSlice(String slice, HashFunction hashFunction) {
         String[] tokens = slice.split(String.valueOf("\\" + SLICE_DELIMITER));
         int index = Integer.parseInt(tokens[0]);
         
         int parentIndex;
         byte[] parentDigest = null;
+        byte[] left = new byte[HashFunction.DIGEST_LENGTH];
+        byte[] right = new byte[HashFunction.DIGEST_LENGTH];
+        byte[] expected = new byte[HashFunction.DIGEST_LENGTH];
         
         for (int i = 1; index > 1; i += 2, index /= 2) {
             parentIndex = i + 2 + (index / 2 == 1 ? 0 : index / 2) % 2;
-            parentDigest = HashUtils.sha256(
-                    HashUtils.hex2byte(tokens[i]),
-                    HashUtils.hex2byte(tokens[i + 1]));
+            parentDigest = new byte[HashFunction.DIGEST_LENGTH];
             
-            if (!HashUtils.byte2hex(parentDigest).equals(tokens[parentIndex])) {
+            decodeDigest(tokens[i], left);
+            decodeDigest(tokens[i + 1], right);
+            decodeDigest(tokens[parentIndex], expected);
+            hashFunction.hash(left, right, parentDigest, 0);
+            
+            if (!Arrays.equals(parentDigest, expected)) {
                 throw new VerifyError("Hashes of slice do not match.");
             }
         }
@@ -210,6 +313,14 @@ public class FBHTree implements Serializable {
         return parentDigest;
     }
     
+    private static void decodeDigest(String hex, byte[] digest) {
+        if (hex.length() != digest.length * 2) {
+            throw new VerifyError("Malformed digest in slice.");
+        }
+        
+        HashUtils.hex2byte(hex, 0, hex.length(), digest, 0);
+    }
+    
     /**
      * Basic node for FBHTree.
      */
@@ -220,8 +331,8 @@ public class FBHTree implements Serializable {
         private final boolean isLeaf;
         private boolean dirty;
         private final boolean lazyUpdate;
-        private byte[] contentDigest;
-        private transient String contentDigestHexStr;
+        private final HashFunction hashFunction;
+        private final byte[] contentDigest;
         
         private final Node leftChild;
         private final Node rightChild;
@@ -229,26 +340,25 @@ public class FBHTree implements Serializable {
         private List<String> contentKeys;
         private List<byte[]> contentValues;
         
-        public Node(int id, Node leftChild, Node rightChild, boolean enableLazyUpdate) {
+        public Node(int id, Node leftChild, Node rightChild, boolean enableLazyUpdate,
+                    HashFunction hashFunction) {
             this.id = id;
             this.dirty = false;
             this.lazyUpdate = enableLazyUpdate;
+            this.hashFunction = hashFunction;
+            this.contentDigest = new byte[HashFunction.DIGEST_LENGTH];
             this.leftChild = leftChild;
             this.rightChild = rightChild;
             
             if (leftChild == null || rightChild == null) { // leaf node
                 this.isLeaf = true;
-                this.contentDigest = new byte[32];
                 
                 new Random().nextBytes(this.contentDigest);
             } else { // internal node
                 this.isLeaf = false;
-                this.contentDigest = HashUtils.sha256(
-                        leftChild.getContentDigest(),
-                        rightChild.getContentDigest());
+                this.dirty = true; // updated by FBHTree level by level
             }
             
-            this.contentDigestHexStr = HashUtils.byte2hex(contentDigest);
             this.contentKeys = null;
             this.contentValues = null;
         }
@@ -291,22 +401,21 @@ public class FBHTree implements Serializable {
         }
         
         private void updateContentDigest() {
-            if (isDirty() || contentDigestHexStr == null) {
+            if (isDirty()) {
                 if (isLeaf) {
                     if (contentKeys == null) {
                         contentKeys = new ArrayList<>(DEFAULT_LIST_SIZE);
                         contentValues = new ArrayList<>(DEFAULT_LIST_SIZE);
                     }
                     
-                    contentDigest = HashUtils.sha256(contentValues);
+                    hashFunction.hash(contentValues, contentDigest, 0);
                 } else {
-                    contentDigest = HashUtils.sha256(
-                            leftChild.getContentDigest(),
-                            rightChild.getContentDigest());
+                    // the digest is updated in place to avoid allocation
+                    hashFunction.hash(leftChild.getContentDigest(),
+                                      rightChild.getContentDigest(),
+                                      contentDigest, 0);
                 }
                 
-                contentDigestHexStr = HashUtils.byte2hex(contentDigest);
-                
                 setDirty(false);
             }
         }
@@ -317,12 +426,6 @@ public class FBHTree implements Serializable {
             return contentDigest;
         }
         
-        public String getContentDigestHexString() {
-            updateContentDigest();
-            
-            return contentDigestHexStr;
-        }
-        
         public int size() {
             return contentKeys.size();
         }
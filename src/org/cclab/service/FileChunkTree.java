@@ -0,0 +1,432 @@
+package org.cclab.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * A binary hash tree over the fixed-size chunks of a single file. It allows
+ * any byte range of a large file to be verified by downloading only the
+ * chunks covering that range plus a small proof, instead of the whole file.
+ *
+ * Nodes are numbered like FBHTree, node i has children 2i and 2i+1 and the
+ * leaves start at the smallest power of two not less than the number of
+ * chunks. Missing leaves are zero digests. The digests are packed into one
+ * array, so the children of a whole level are contiguous and each level is
+ * hashed by one batch call.
+ *
+ * As in RFC 6962, a leaf is H(0x00 || chunk) and an internal node is
+ * H(0x01 || left || right), so a node cannot be passed off as a chunk. The
+ * root hash is H(0x02 || long file length || int chunk size || node 1),
+ * which fixes the shape of the tree a proof is checked against.
+ *
+ * @author Scott
+ * @see MerkleTree
+ */
+public class FileChunkTree implements Serializable {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    
+    /**
+     * The maximum number of chunks, so that the digests of all nodes fit in
+     * one array: the leaves are rounded up to a power of two, and there are
+     * twice as many nodes as leaves.
+     */
+    public static final int MAX_CHUNKS = Integer.highestOneBit(Integer.MAX_VALUE / (2 * HashFunction.DIGEST_LENGTH));
+    
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final byte ROOT_PREFIX = 2;
+    
+    private final int chunkSize;
+    private final HashFunction hashFunction;
+    private final long fileLength;
+    private final int chunkCount;
+    private final int leafOffset;
+    private final byte[] nodes;
+    private final byte[] rootHash;
+    
+    /**
+     * Construct a FileChunkTree of the given file. Chunks are hashed in
+     * parallel.
+     * @param file the file to be hashed.
+     * @param chunkSize the size of each chunk in bytes.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if chunk size is not positive.
+     */
+    public FileChunkTree(File file, int chunkSize) throws IOException {
+        this(file, chunkSize, HashFunction.SHA256);
+    }
+    
+    /**
+     * Construct a FileChunkTree of the given file with specified hash
+     * function.
+     * @param file the file to be hashed.
+     * @param chunkSize the size of each chunk in bytes.
+     * @param hashFunction the hash function of chunks and nodes.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if chunk size is not positive.
+     */
+    public FileChunkTree(File file, int chunkSize, HashFunction hashFunction) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The minimum value for chunk size is 1.");
+        }
+        
+        this.chunkSize = chunkSize;
+        this.hashFunction = hashFunction;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.fileLength = channel.size();
+            this.chunkCount = countChunks(fileLength, chunkSize);
+            this.leafOffset = leafOffset(chunkCount);
+            this.nodes = new byte[leafOffset * 2 * HashFunction.DIGEST_LENGTH];
+            
+            try {
+                IntStream.range(0, chunkCount).parallel().forEach(i -> {
+                    System.arraycopy(hashChunk(channel, i), 0,
+                                     nodes, (leafOffset + i) * HashFunction.DIGEST_LENGTH,
+                                     HashFunction.DIGEST_LENGTH);
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+        
+        // level [lo, 2lo) is hashed from its children [2lo, 4lo)
+        for (int lo = leafOffset >> 1; lo > 0; lo >>= 1) {
+            hashFunction.hashPairs(NODE_PREFIX, nodes, 2 * lo * HashFunction.DIGEST_LENGTH,
+                                   nodes, lo * HashFunction.DIGEST_LENGTH, lo);
+        }
+        
+        this.rootHash = hashRoot(hashFunction, fileLength, chunkSize, digestOf(1));
+    }
+    
+    /**
+     * Construct a FileChunkTree with default chunk size.
+     */
+    public FileChunkTree(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE);
+    }
+    
+    private static int countChunks(long fileLength, int chunkSize) {
+        long count = (fileLength + chunkSize - 1) / chunkSize;
+        
+        if (count > MAX_CHUNKS) {
+            throw new IllegalArgumentException("More than " + MAX_CHUNKS + " chunks, use a larger chunk size.");
+        }
+        
+        // an empty file still has one (empty) chunk
+        return (int) Math.max(1, count);
+    }
+    
+    private static int leafOffset(int chunkCount) {
+        int offset = 1;
+        
+        while (offset < chunkCount) {
+            offset <<= 1;
+        }
+        
+        return offset;
+    }
+    
+    private byte[] hashChunk(FileChannel channel, int index) {
+        long position = (long) index * chunkSize;
+        long length = Math.min(chunkSize, fileLength - position);
+        MessageDigest md = hashFunction.engine();
+        
+        md.update(LEAF_PREFIX);
+        
+        try {
+            HashUtils.update(md, channel, position, length, Math.min(chunkSize, HashUtils.DEFAULT_BUFFER_SIZE));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        
+        return md.digest();
+    }
+    
+    private static byte[] hashRoot(HashFunction hashFunction, long fileLength, int chunkSize, byte[] top) {
+        byte[] header = ByteBuffer.allocate(13).put(ROOT_PREFIX).putLong(fileLength).putInt(chunkSize).array();
+        
+        return hashFunction.hash(header, top);
+    }
+    
+    /**
+     * Returns the root hash of this FileChunkTree, which commits to the file
+     * length and chunk size.
+     */
+    public byte[] getRootHash() {
+        return rootHash.clone();
+    }
+    
+    /**
+     * Returns the digest of the specified chunk.
+     */
+    public byte[] getChunkDigest(int index) {
+        checkChunkIndex(index);
+        
+        return digestOf(leafOffset + index);
+    }
+    
+    private byte[] digestOf(int node) {
+        return Arrays.copyOfRange(nodes, node * HashFunction.DIGEST_LENGTH,
+                                  (node + 1) * HashFunction.DIGEST_LENGTH);
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+    
+    public int getChunkCount() {
+        return chunkCount;
+    }
+    
+    public long getFileLength() {
+        return fileLength;
+    }
+    
+    private void checkChunkIndex(int index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new IndexOutOfBoundsException("Chunk index: " + index + ", count: " + chunkCount);
+        }
+    }
+    
+    /**
+     * Extract a proof for the chunks covering the specified byte range.
+     * @param offset the first byte of the range.
+     * @param length the number of bytes of the range.
+     * @return the range proof, see {@link RangeProof#getOffset()} and
+     *         {@link RangeProof#getLength()} for the bytes to be downloaded.
+     * @throws IndexOutOfBoundsException if the range is out of the file.
+     */
+    public RangeProof extractRangeProof(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > fileLength) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + offset + ", " + (offset + length) + ") is out of file length " + fileLength);
+        }
+        
+        int first = (int) (offset / chunkSize);
+        int last = length == 0 ? first : (int) ((offset + length - 1) / chunkSize);
+        
+        return extractChunkProof(Math.min(first, chunkCount - 1), Math.min(last, chunkCount - 1));
+    }
+    
+    /**
+     * Extract a proof for the chunks from first to last (inclusive).
+     */
+    public RangeProof extractChunkProof(int first, int last) {
+        checkChunkIndex(first);
+        checkChunkIndex(last);
+        
+        if (first > last) {
+            throw new IllegalArgumentException("First chunk is behind the last chunk.");
+        }
+        
+        List<byte[]> siblings = new ArrayList<>();
+        
+        for (int lo = leafOffset + first, hi = leafOffset + last; lo > 1; lo >>= 1, hi >>= 1) {
+            if (lo % 2 == 1) {
+                siblings.add(digestOf(lo - 1));
+            }
+            
+            if (hi % 2 == 0) {
+                siblings.add(digestOf(hi + 1));
+            }
+        }
+        
+        return new RangeProof(hashFunction, chunkSize, fileLength, first, last,
+                              siblings.toArray(new byte[siblings.size()][]));
+    }
+    
+    /**
+     * The proof of a contiguous range of chunks. It contains the sibling
+     * digests needed to re-evaluate the root hash from the chunk contents.
+     */
+    public static class RangeProof implements Serializable {
+        private static final byte[] NODE_PREFIX_BYTES = {NODE_PREFIX};
+        
+        private final HashFunction hashFunction;
+        private final int chunkSize;
+        private final long fileLength;
+        private final int firstChunk;
+        private final int lastChunk;
+        private final byte[][] siblings;
+        
+        public RangeProof(HashFunction hashFunction, int chunkSize, long fileLength,
+                          int firstChunk, int lastChunk, byte[][] siblings) {
+            this.hashFunction = hashFunction;
+            this.chunkSize = chunkSize;
+            this.fileLength = fileLength;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.siblings = siblings;
+        }
+        
+        public HashFunction getHashFunction() {
+            return hashFunction;
+        }
+        
+        public int getChunkSize() {
+            return chunkSize;
+        }
+        
+        public long getFileLength() {
+            return fileLength;
+        }
+        
+        public int getFirstChunk() {
+            return firstChunk;
+        }
+        
+        public int getLastChunk() {
+            return lastChunk;
+        }
+        
+        /**
+         * Returns the file offset of the first byte covered by this proof.
+         */
+        public long getOffset() {
+            return (long) firstChunk * chunkSize;
+        }
+        
+        /**
+         * Returns the number of bytes covered by this proof.
+         */
+        public long getLength() {
+            return Math.min(fileLength, (long) (lastChunk + 1) * chunkSize) - getOffset();
+        }
+        
+        /**
+         * Evaluate the root hash from the downloaded chunks.
+         * @param data the bytes from {@link #getOffset()} with length
+         *        {@link #getLength()}.
+         * @return byte array of the root hash.
+         * @throws IllegalArgumentException if the length of data does not
+         *         match to this proof.
+         */
+        public byte[] evalRootHash(byte[] data) {
+            checkShape();
+            
+            if (data.length != getLength()) {
+                throw new IllegalArgumentException(
+                        "Expected " + getLength() + " bytes but got " + data.length);
+            }
+            
+            byte[][] level = new byte[lastChunk - firstChunk + 1][];
+            
+            for (int i = 0; i < level.length; i++) {
+                int from = i * chunkSize;
+                int to = (int) Math.min(data.length, (long) from + chunkSize);
+                MessageDigest md = hashFunction.engine();
+                
+                md.update(LEAF_PREFIX);
+                md.update(data, from, to - from);
+                level[i] = md.digest();
+            }
+            
+            return evalRootHash(level);
+        }
+        
+        /**
+         * Check that the chunks of this proof are in the file it claims.
+         * The claim itself is checked by the root hash.
+         */
+        private void checkShape() {
+            if (chunkSize <= 0 || fileLength < 0 || firstChunk < 0 || firstChunk > lastChunk
+                || lastChunk >= countChunks(fileLength, chunkSize)) {
+                throw new VerifyError("Malformed range proof.");
+            }
+        }
+        
+        /**
+         * Evaluate the root hash from the digests of the chunks covered by
+         * this proof.
+         */
+        public byte[] evalRootHash(byte[][] chunkDigests) {
+            checkShape();
+            
+            if (chunkDigests.length != lastChunk - firstChunk + 1) {
+                throw new VerifyError("Malformed range proof.");
+            }
+            
+            int leafOffset = leafOffset(countChunks(fileLength, chunkSize));
+            int lo = leafOffset + firstChunk;
+            int hi = leafOffset + lastChunk;
+            int s = 0;
+            byte[][] level = chunkDigests;
+            
+            try {
+                for (; lo > 1; lo >>= 1, hi >>= 1) {
+                    byte[] left = lo % 2 == 1 ? siblings[s++] : null;
+                    byte[] right = hi % 2 == 0 ? siblings[s++] : null;
+                    byte[][] parents = new byte[(hi >> 1) - (lo >> 1) + 1][];
+                    
+                    for (int i = 0; i < parents.length; i++) {
+                        int l = 2 * i - (left != null ? 1 : 0);
+                        int r = l + 1;
+                        
+                        parents[i] = hashFunction.hash(
+                                NODE_PREFIX_BYTES,
+                                l < 0 ? left : level[l],
+                                r >= level.length ? right : level[r]);
+                    }
+                    
+                    level = parents;
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw new VerifyError("Malformed range proof.");
+            }
+            
+            if (s != siblings.length) {
+                throw new VerifyError("Malformed range proof.");
+            }
+            
+            if (level.length != 1) {
+                throw new VerifyError("Malformed range proof.");
+            }
+            
+            return hashRoot(hashFunction, fileLength, chunkSize, level[0]);
+        }
+        
+        /**
+         * Verify the downloaded chunks of a requested range against the
+         * trusted root hash. The proof must cover exactly the chunks of the
+         * range, in the file length and chunk size committed by the root.
+         * @param rootHash the trusted root hash.
+         * @param offset the first byte of the requested range.
+         * @param length the number of bytes of the requested range.
+         * @param data the bytes from {@link #getOffset()} with length
+         *        {@link #getLength()}.
+         * @return true if the data is the range of the file of the root hash.
+         */
+        public boolean verify(byte[] rootHash, long offset, long length, byte[] data) {
+            if (offset < 0 || length < 0 || offset + length > fileLength || chunkSize <= 0) {
+                return false;
+            }
+            
+            try {
+                int chunkCount = countChunks(fileLength, chunkSize);
+                long first = Math.min(offset / chunkSize, chunkCount - 1);
+                long last = Math.min(length == 0 ? first : (offset + length - 1) / chunkSize, chunkCount - 1);
+                
+                return first == firstChunk && last == lastChunk && Arrays.equals(rootHash, evalRootHash(data));
+            } catch (IllegalArgumentException | VerifyError ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.cclab.service;
+
+import org.cclab.message.foursteps.chainhash_lsn.Request;
+
+/**
+ * Check the local sequence numbers of the requests of each client in the
+ * chain-hash LSN protocol. Pipelined requests may arrive slightly out of
+ * order, so each client has a window of the last numbers below its highest
+ * one, with a bit for each of them telling whether it has been seen:
+ * <pre>
+ * highest - window &lt; lsn &lt;= highest            accepted once, then REPLAYED
+ * lsn &lt;= highest - window                      TOO_OLD
+ * highest &lt; lsn &lt;= highest + window            accepted, the window moves up
+ * lsn &gt; highest + window                        GAP
+ * </pre>
+ * Numbers start from 1, and the highest number of a new client is 0.
+ *
+ * The clients are kept in stripes, each locked on its own. A stripe is an
+ * open-addressing table of client IDs and a long array holding the highest
+ * number and the window bits of every client, so a client costs a reference
+ * and 1 + window / 64 longs besides its ID, and checking a known client
+ * allocates nothing.
+ * @author Scott
+ */
+public class LSNTracker {
+    /**
+     * The outcome of checking a number.
+     */
+    public enum Check {
+        /**
+         * The number is new and is now seen.
+         */
+        ACCEPTED,
+        
+        /**
+         * The number has been seen.
+         */
+        REPLAYED,
+        
+        /**
+         * The number is below the window, so it cannot be told from a
+         * replay.
+         */
+        TOO_OLD,
+        
+        /**
+         * The number is too far above the highest one.
+         */
+        GAP
+    }
+    
+    public static final int DEFAULT_WINDOW = 64;
+    public static final int DEFAULT_STRIPES = 64;
+    public static final int MAX_WINDOW = 1 << 16;
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private final int window;
+    private final int words;
+    private final int stride;
+    private final Stripe[] stripes;
+    
+    /**
+     * Construct a tracker.
+     * @param window the number of numbers below the highest one that are
+     *        accepted out of order, and how far above it a number may be.
+     * @param stripes the number of stripes, rounded up to a power of two.
+     */
+    public LSNTracker(int window, int stripes) {
+        if (window <= 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("The window must be from 1 to " + MAX_WINDOW + ".");
+        } else if (stripes <= 0) {
+            throw new IllegalArgumentException("The minimum number of stripes is 1.");
+        }
+        
+        int size = 1;
+        
+        while (size < stripes) {
+            size <<= 1;
+        }
+        
+        this.window = window;
+        this.words = (window + 63) >>> 6;
+        this.stride = 1 + words;
+        this.stripes = new Stripe[size];
+        
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe(INITIAL_CAPACITY, stride);
+        }
+    }
+    
+    public LSNTracker() {
+        this(DEFAULT_WINDOW, DEFAULT_STRIPES);
+    }
+    
+    /**
+     * Check a number of the client and mark it as seen if it is accepted.
+     * @param clientID the client.
+     * @param lsn the local sequence number.
+     */
+    public Check accept(String clientID, long lsn) {
+        if (lsn <= 0) {
+            return Check.TOO_OLD;
+        }
+        
+        int hash = spread(clientID.hashCode());
+        Stripe stripe = stripes[hash & (stripes.length - 1)];
+        
+        synchronized (stripe) {
+            int slot = stripe.find(clientID, hash >>> 8);
+            
+            if (stripe.keys[slot] == null) {
+                if (lsn > window) {
+                    return Check.GAP;
+                }
+                
+                slot = stripe.insert(clientID, slot, hash >>> 8);
+            }
+            
+            return check(stripe.states, slot * stride, lsn);
+        }
+    }
+    
+    /**
+     * Check the number of a request, see {@link #accept(String, long)}.
+     * @param req the request.
+     */
+    public Check accept(Request req) {
+        return accept(req.getClientID(), req.getLocalSequenceNumber());
+    }
+    
+    /**
+     * Check a number against the state at the offset, which holds the
+     * highest number and the window bits, bit i standing for highest - i.
+     */
+    private Check check(long[] states, int offset, long lsn) {
+        long highest = states[offset];
+        
+        if (lsn > highest) {
+            long distance = lsn - highest;
+            
+            if (distance > window) {
+                return Check.GAP;
+            }
+            
+            shift(states, offset + 1, (int) distance);
+            
+            states[offset] = lsn;
+            states[offset + 1] |= 1L;
+            
+            return Check.ACCEPTED;
+        }
+        
+        long distance = highest - lsn;
+        
+        if (distance >= window) {
+            return Check.TOO_OLD;
+        }
+        
+        int word = offset + 1 + (int) (distance >>> 6);
+        long bit = 1L << distance;
+        
+        if ((states[word] & bit) != 0) {
+            return Check.REPLAYED;
+        }
+        
+        states[word] |= bit;
+        
+        return Check.ACCEPTED;
+    }
+    
+    /**
+     * Move the bits of the window up by distance, dropping the oldest.
+     */
+    private void shift(long[] states, int from, int distance) {
+        int wordShift = distance >>> 6;
+        int bitShift = distance & 63;
+        
+        for (int i = words - 1; i >= 0; i--) {
+            int source = i - wordShift;
+            long value = 0;
+            
+            if (source >= 0) {
+                value = states[from + source] << bitShift;
+                
+                if (bitShift != 0 && source > 0) {
+                    value |= states[from + source - 1] >>> (64 - bitShift);
+                }
+            }
+            
+            states[from + i] = value;
+        }
+    }
+    
+    /**
+     * Returns the highest accepted number of the client, or 0.
+     */
+    public long getHighest(String clientID) {
+        int hash = spread(clientID.hashCode());
+        Stripe stripe = stripes[hash & (stripes.length - 1)];
+        
+        synchronized (stripe) {
+            int slot = stripe.find(clientID, hash >>> 8);
+            
+            return stripe.keys[slot] == null ? 0 : stripe.states[slot * stride];
+        }
+    }
+    
+    /**
+     * Returns the number of tracked clients.
+     */
+    public int getClientCount() {
+        int count = 0;
+        
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                count += stripe.size;
+            }
+        }
+        
+        return count;
+    }
+    
+    private static int spread(int h) {
+        h *= 0x9e3779b9;
+        
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * An open-addressing table with linear probing.
+     */
+    private static class Stripe {
+        final int stride;
+        String[] keys;
+        long[] states;
+        int size;
+        
+        Stripe(int capacity, int stride) {
+            this.stride = stride;
+            this.keys = new String[capacity];
+            this.states = new long[capacity * stride];
+        }
+        
+        /**
+         * Returns the slot of the key, or the empty slot where it belongs.
+         */
+        int find(String key, int hash) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            
+            while (keys[slot] != null && !keys[slot].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            
+            return slot;
+        }
+        
+        /**
+         * Insert the key at the empty slot found for it.
+         * @return the slot of the key, which moves if the table grows.
+         */
+        int insert(String key, int slot, int hash) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                slot = find(key, hash);
+            }
+            
+            keys[slot] = key;
+            size++;
+            
+            return slot;
+        }
+        
+        private void grow() {
+            String[] oldKeys = keys;
+            long[] oldStates = states;
+            
+            keys = new String[oldKeys.length * 2];
+            states = new long[keys.length * stride];
+            
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = find(oldKeys[i], spread(oldKeys[i].hashCode()) >>> 8);
+                    
+                    keys[slot] = oldKeys[i];
+                    System.arraycopy(oldStates, i * stride, states, slot * stride, stride);
+                }
+            }
+        }
+    }
+}
@@ -1,27 +1,138 @@
 package org.cclab.service;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.cclab.utility.HashFunction;
 import org.cclab.utility.HashUtils;
 
 /**
+ * Digests of nodes are kept as 32 bytes arrays and converted to hex strings
+ * only by {@link Node#getDigest()}. The way a directory digest is derived
+ * from its children is selected by {@link DigestFormat}.
  *
  * @author Scott
  */
-public class MerkleTree implements Serializable {
+public class MerkleTree implements DigestListing, Serializable {
+    private static final Logger LOGGER = Logger.getLogger(MerkleTree.class.getName());
+    private static final byte TYPE_FILE = 0;
+    private static final byte TYPE_DIRECTORY = 1;
+    
+    /**
+     * Versions of the directory digest format.
+     */
+    public enum DigestFormat {
+        /**
+         * Hash of the concatenated hex strings of the children digests, in
+         * the order of their names. Names of children are not bound. The
+         * digests differ from those of earlier releases, which kept the
+         * children in listing order and took the hex of the concatenation
+         * instead of hashing it.
+         */
+        V1((byte) 1),
+        
+        /**
+         * Hash of the version byte 0x02 followed by, for every child, its
+         * type byte, 0 for a file and 1 for a directory, the 4 bytes
+         * big-endian length of its UTF-8 name, the name and its 32 bytes
+         * digest.
+         */
+        V2((byte) 2);
+        
+        public final byte version;
+        
+        DigestFormat(byte version) {
+            this.version = version;
+        }
+        
+        public static DigestFormat valueOf(byte version) {
+            for (DigestFormat format: values()) {
+                if (format.version == version) {
+                    return format;
+                }
+            }
+            
+            throw new IllegalArgumentException("Unknown digest format version: " + version);
+        }
+    }
+    
+    public static final DigestFormat DEFAULT_DIGEST_FORMAT = DigestFormat.V2;
+    public static final HashFunction DEFAULT_HASH_FUNCTION = HashFunction.SHA256;
+    
     private final Node root;
+    private final int chunkSize;
+    private final DigestFormat digestFormat;
+    private final HashFunction hashFunction;
     
     public MerkleTree(File root) {
+        this(root, 0);
+    }
+    
+    /**
+     * Construct a MerkleTree whose files larger than chunk size are digested
+     * by a FileChunkTree, so that any byte range of them can be verified.
+     * @param root the root file.
+     * @param chunkSize the chunk size in bytes, or 0 to digest every file as
+     *        a whole.
+     * @see FileChunkTree
+     */
+    public MerkleTree(File root, int chunkSize) {
+        this(root, chunkSize, DEFAULT_DIGEST_FORMAT);
+    }
+    
+    /**
+     * Construct a MerkleTree with specified directory digest format.
+     * @param root the root file.
+     * @param chunkSize the chunk size in bytes, or 0 to digest every file as
+     *        a whole.
+     * @param digestFormat the directory digest format.
+     */
+    public MerkleTree(File root, int chunkSize, DigestFormat digestFormat) {
+        this(root, chunkSize, digestFormat, DEFAULT_HASH_FUNCTION);
+    }
+    
+    /**
+     * Construct a MerkleTree with specified directory digest format and hash
+     * function.
+     * @param root the root file.
+     * @param chunkSize the chunk size in bytes, or 0 to digest every file as
+     *        a whole.
+     * @param digestFormat the directory digest format.
+     * @param hashFunction the hash function of files and directories.
+     */
+    public MerkleTree(File root, int chunkSize, DigestFormat digestFormat, HashFunction hashFunction) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("Chunk size cannot be negative.");
+        }
+        
+        this.chunkSize = chunkSize;
+        this.digestFormat = digestFormat;
+        this.hashFunction = hashFunction;
         this.root = buildMerkleTree(root);
     }
     
     private Node buildMerkleTree(File rootFile) {
-        Node node = new Node(rootFile);
+        Node node = new Node(rootFile, chunkSize, digestFormat, hashFunction);
         
         if (rootFile.isDirectory()) {
-            for (File childFile: rootFile.listFiles()) {
+            File[] childFiles = rootFile.listFiles();
+            
+            // children are ordered by name so that the digest is reproducible
+            Arrays.sort(childFiles, Comparator.comparing(File::getName));
+            
+            for (File childFile: childFiles) {
                 node.addChild(buildMerkleTree(childFile));
             }
         }
@@ -39,15 +150,25 @@ public class MerkleTree implements Serializable {
         node.parent.remove(node);
     }
     
+    /**
+     * Mark the node changed, so it and its ancestors are digested again.
+     */
     public void update(Node node) {
-        node.isDirty = true;
+        node.markDirty();
     }
     
+    /**
+     * Returns the node at the path relative to the root, whose names are
+     * separated by {@link File#separator}. The empty path is the root.
+     * @throws NoSuchElementException if the path does not exist.
+     */
     public Node retrieve(String path) throws NoSuchElementException {
         Node target = root;
         
-        for (String pathName: path.split(File.pathSeparator)) {
-            target = target.findChild(pathName);
+        for (String pathName: path.split(Pattern.quote(File.separator))) {
+            if (!pathName.isEmpty()) {
+                target = target.findChild(pathName);
+            }
         }
         
         return target;
@@ -57,16 +178,146 @@ public class MerkleTree implements Serializable {
         return root;
     }
     
+    @Override
+    public DigestFormat getDigestFormat() {
+        return digestFormat;
+    }
+    
+    @Override
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+    
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * Returns the digest of the root.
+     * @throws IOException if a file cannot be read.
+     */
+    @Override
+    public byte[] getRootDigestBytes() throws IOException {
+        return root.getDigestBytes();
+    }
+    
+    /**
+     * Returns the children of the specified directory, ordered by name.
+     * @throws NoSuchElementException if the path is not a directory.
+     * @throws IOException if a file cannot be read.
+     */
+    @Override
+    public List<DigestListing.Entry> listDigests(String path) throws NoSuchElementException, IOException {
+        Node target = retrieve(path);
+        
+        if (!target.file.isDirectory()) {
+            throw new NoSuchElementException(path + " is not a directory");
+        }
+        
+        List<DigestListing.Entry> entries = new ArrayList<>(target.children.size());
+        
+        for (Node child: target.children) {
+            entries.add(new DigestListing.Entry(child.file.getName(),
+                                                child.getDigestBytes(),
+                                                child.file.isDirectory()));
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Evaluate the digest of a directory from the digests of its children.
+     * @param function the hash function.
+     * @param format the directory digest format.
+     * @param names names of the children, in ascending order.
+     * @param directories whether the children are directories, in the same
+     *        order as names.
+     * @param digests digests of the children, in the same order as names.
+     * @return the directory digest.
+     */
+    public static byte[] evalDirectoryDigest(HashFunction function, DigestFormat format, List<String> names,
+                                             List<Boolean> directories, List<byte[]> digests) {
+        MessageDigest md = function.engine();
+        
+        switch (format) {
+            case V1:
+                byte[] hex = new byte[HashFunction.DIGEST_LENGTH * 2];
+                
+                for (byte[] digest: digests) {
+                    md.update(hex, 0, HashUtils.byte2hex(digest, 0, digest.length, hex, 0));
+                }
+                
+                break;
+            case V2:
+                ByteBuffer length = ByteBuffer.allocate(4);
+                
+                md.update(format.version);
+                
+                for (int i = 0; i < digests.size(); i++) {
+                    byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                    
+                    length.clear();
+                    length.putInt(name.length);
+                    md.update(directories.get(i) ? TYPE_DIRECTORY : TYPE_FILE);
+                    md.update(length.array());
+                    md.update(name);
+                    md.update(digests.get(i));
+                }
+                
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown digest format: " + format);
+        }
+        
+        return md.digest();
+    }
+    
+    /**
+     * Extract a range proof of the specified file in this MerkleTree.
+     * @param path the path of the file.
+     * @param offset the first byte of the range.
+     * @param length the number of bytes of the range.
+     * @return the range proof whose root hash is the digest of the file.
+     * @throws NoSuchElementException if the file does not exist or is not
+     *         digested by chunks.
+     * @throws IOException if the file cannot be read.
+     */
+    public FileChunkTree.RangeProof extractRangeProof(String path, long offset, long length)
+        throws NoSuchElementException, IOException {
+        Node node = retrieve(path);
+        
+        node.getDigestBytes();
+        
+        if (node.chunkTree == null) {
+            throw new NoSuchElementException(path + " is not digested by chunks");
+        }
+        
+        return node.chunkTree.extractRangeProof(offset, length);
+    }
+    
     public static class Node implements Serializable {
         protected File file;
         
-        private String digest;
+        private final int chunkSize;
+        private final DigestFormat digestFormat;
+        private final HashFunction hashFunction;
+        private FileChunkTree chunkTree;
+        private byte[] digest;
+        private transient String digestHexStr;
         private boolean isDirty;
         private Node parent;
         private final List<Node> children;
         
         public Node(File file) {
+            this(file, 0, DEFAULT_DIGEST_FORMAT, DEFAULT_HASH_FUNCTION);
+        }
+        
+        public Node(File file, int chunkSize, DigestFormat digestFormat, HashFunction hashFunction) {
             this.file = file;
+            this.chunkSize = chunkSize;
+            this.digestFormat = digestFormat;
+            this.hashFunction = hashFunction;
             
             this.isDirty = true;
             this.children = new ArrayList<>();
@@ -85,11 +336,25 @@ public class MerkleTree implements Serializable {
             }
         }
         
+        /**
+         * Add a child, keeping the children ordered by name as the digest
+         * requires.
+         */
         public boolean addChild(Node child) {
             child.parent = this;
             
             if (!children.contains(child)) {
-                children.add(child);
+                String name = child.file.getName();
+                int index = children.size();
+                
+                // children usually come in order, so search from the end
+                while (index > 0 && children.get(index - 1).file.getName().compareTo(name) > 0) {
+                    index--;
+                }
+                
+                children.add(index, child);
+                markDirty();
+                
                 return true;
             } else {
                 return false;
@@ -99,7 +364,7 @@ public class MerkleTree implements Serializable {
         public boolean remove(Node child) {
             if (children.contains(child)) {
                 children.remove(child);
-                isDirty = true;
+                markDirty();
                 
                 return true;
             } else {
@@ -107,6 +372,15 @@ public class MerkleTree implements Serializable {
             }
         }
         
+        /**
+         * Mark this node and its ancestors to be digested again.
+         */
+        private void markDirty() {
+            for (Node node = this; node != null; node = node.parent) {
+                node.isDirty = true;
+            }
+        }
+        
         public Node findChild(String targetName) throws NoSuchElementException {
             for (Node child: children) {
                 if (child.file.getName().equals(targetName)) {
@@ -117,24 +391,72 @@ public class MerkleTree implements Serializable {
             throw new NoSuchElementException("cannot find " + targetName);
         }
         
+        /**
+         * Returns hex string of the digest of this node, or null if a file
+         * under it cannot be read.
+         */
         public String getDigest() {
+            byte[] bytes;
+            
+            try {
+                bytes = getDigestBytes();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                
+                return null;
+            }
+            
+            if (digestHexStr == null) {
+                digestHexStr = HashUtils.byte2hex(bytes);
+            }
+            
+            return digestHexStr;
+        }
+        
+        /**
+         * Returns the digest of this node. The node stays dirty if a file
+         * under it cannot be read, so it is digested again next time.
+         * @throws IOException if a file under this node cannot be read.
+         */
+        public byte[] getDigestBytes() throws IOException {
             if (isDirty) {
                 if (file.isDirectory()) {
-                    StringBuilder sb = new StringBuilder();
+                    List<String> names = new ArrayList<>(children.size());
+                    List<Boolean> directories = new ArrayList<>(children.size());
+                    List<byte[]> childDigests = new ArrayList<>(children.size());
                     
                     for (Node child: children) {
-                        sb.append(child.getDigest());
+                        names.add(child.file.getName());
+                        directories.add(child.file.isDirectory());
+                        childDigests.add(child.getDigestBytes());
                     }
                     
-                    digest = HashUtils.sha256(sb.toString());
+                    digest = evalDirectoryDigest(hashFunction, digestFormat, names, directories, childDigests);
                 } else {
-                    digest = HashUtils.sha256(file);
+                    digest = digestFile();
                 }
                 
+                digestHexStr = null;
                 isDirty = false;
             }
             
             return digest;
         }
+        
+        private byte[] digestFile() throws IOException {
+            chunkTree = null;
+            
+            if (chunkSize > 0 && file.length() > chunkSize) {
+                FileChunkTree tree = new FileChunkTree(file, chunkSize, hashFunction);
+                
+                chunkTree = tree;
+                
+                return tree.getRootHash();
+            }
+            
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return HashUtils.hash(hashFunction, channel, HashUtils.DEFAULT_BUFFER_SIZE);
+            }
+        }
     }
 }
@@ -0,0 +1,185 @@
+package org.cclab.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import org.cclab.utility.HashFunction;
+
+/**
+ * Top-down comparison of two MerkleTrees, which lists only the directories
+ * whose digests differ and checks every listing against its digest.
+ *
+ * @author Scott
+ * @see DigestListing
+ */
+public class MerkleTreeDiff {
+    public enum ChangeType {
+        ADDED, CHANGED, REMOVED
+    }
+    
+    /**
+     * A path to be added, updated or removed. A directory which is added or
+     * removed is reported once without its descendants.
+     */
+    public static class Change {
+        public final ChangeType type;
+        public final String path;
+        public final boolean directory;
+        
+        public Change(ChangeType type, String path, boolean directory) {
+            this.type = type;
+            this.path = path;
+            this.directory = directory;
+        }
+        
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+    }
+    
+    private MerkleTreeDiff() {
+    }
+    
+    /**
+     * Compare two trees.
+     * @param from the tree to be synchronized.
+     * @param to the tree to synchronize from.
+     * @return the changes which turn from into to, in depth-first order.
+     * @throws NoSuchElementException if a directory to compare cannot be
+     *         listed, such as a file root.
+     * @throws IOException if any listing cannot be fetched or does not match
+     *         the digest of its directory.
+     * @throws IllegalArgumentException if the trees use different digest
+     *         formats, hash functions or chunk sizes.
+     */
+    public static List<Change> diff(DigestListing from, DigestListing to)
+        throws NoSuchElementException, IOException {
+        if (from.getDigestFormat() != to.getDigestFormat() || from.getHashFunction() != to.getHashFunction()
+            || from.getChunkSize() != to.getChunkSize()) {
+            throw new IllegalArgumentException(
+                "Both trees must use the same digest format, hash function and chunk size.");
+        }
+        
+        List<Change> changes = new ArrayList<>();
+        byte[] fromRoot = from.getRootDigestBytes();
+        byte[] toRoot = to.getRootDigestBytes();
+        
+        if (Arrays.equals(fromRoot, toRoot)) {
+            return changes;
+        }
+        
+        Deque<Directory> pending = new ArrayDeque<>();
+        
+        pending.push(new Directory("", fromRoot, toRoot));
+        
+        while (!pending.isEmpty()) {
+            Directory directory = pending.pop();
+            String path = directory.path;
+            List<DigestListing.Entry> fromEntries = list(from, path, directory.fromDigest);
+            List<DigestListing.Entry> toEntries = list(to, path, directory.toDigest);
+            
+            List<Directory> subdirectories = new ArrayList<>();
+            int i = 0, j = 0;
+            
+            while (i < fromEntries.size() || j < toEntries.size()) {
+                DigestListing.Entry a = i < fromEntries.size() ? fromEntries.get(i) : null;
+                DigestListing.Entry b = j < toEntries.size() ? toEntries.get(j) : null;
+                int cmp = a == null ? 1 : b == null ? -1 : a.getName().compareTo(b.getName());
+                
+                if (cmp < 0) {
+                    changes.add(new Change(ChangeType.REMOVED, join(path, a.getName()), a.isDirectory()));
+                    i++;
+                } else if (cmp > 0) {
+                    changes.add(new Change(ChangeType.ADDED, join(path, b.getName()), b.isDirectory()));
+                    j++;
+                } else {
+                    String childPath = join(path, a.getName());
+                    
+                    if (a.isDirectory() != b.isDirectory()) {
+                        changes.add(new Change(ChangeType.REMOVED, childPath, a.isDirectory()));
+                        changes.add(new Change(ChangeType.ADDED, childPath, b.isDirectory()));
+                    } else if (!Arrays.equals(a.getDigest(), b.getDigest())) {
+                        if (a.isDirectory()) {
+                            subdirectories.add(new Directory(childPath, a.getDigest(), b.getDigest()));
+                        } else {
+                            changes.add(new Change(ChangeType.CHANGED, childPath, false));
+                        }
+                    }
+                    
+                    i++;
+                    j++;
+                }
+            }
+            
+            // push in reverse so that subdirectories are visited in name order
+            for (int k = subdirectories.size() - 1; k >= 0; k--) {
+                pending.push(subdirectories.get(k));
+            }
+        }
+        
+        return changes;
+    }
+    
+    /**
+     * Fetch the listing of a directory and check that it hashes to the
+     * digest of the directory.
+     * @throws IOException if the listing cannot be fetched, is not ordered
+     *         by name or does not match the digest.
+     */
+    private static List<DigestListing.Entry> list(DigestListing tree, String path, byte[] digest)
+        throws NoSuchElementException, IOException {
+        List<DigestListing.Entry> entries = tree.listDigests(path);
+        List<String> names = new ArrayList<>(entries.size());
+        List<Boolean> directories = new ArrayList<>(entries.size());
+        List<byte[]> digests = new ArrayList<>(entries.size());
+        String previous = null;
+        
+        for (DigestListing.Entry entry: entries) {
+            String name = entry.getName();
+            byte[] childDigest = entry.getDigest();
+            
+            if (name == null || childDigest == null || childDigest.length != HashFunction.DIGEST_LENGTH
+                || previous != null && previous.compareTo(name) >= 0) {
+                throw new IOException("Malformed listing of \"" + path + "\".");
+            }
+            
+            names.add(name);
+            directories.add(entry.isDirectory());
+            digests.add(childDigest);
+            previous = name;
+        }
+        
+        byte[] actual = MerkleTree.evalDirectoryDigest(tree.getHashFunction(), tree.getDigestFormat(),
+                                                       names, directories, digests);
+        
+        if (!Arrays.equals(actual, digest)) {
+            throw new IOException("Listing of \"" + path + "\" does not match its digest.");
+        }
+        
+        return entries;
+    }
+    
+    private static String join(String parent, String name) {
+        return parent.isEmpty() ? name : parent + File.separator + name;
+    }
+    
+    /**
+     * A directory to be compared and its digests in both trees.
+     */
+    private static class Directory {
+        final String path;
+        final byte[] fromDigest;
+        final byte[] toDigest;
+        
+        Directory(String path, byte[] fromDigest, byte[] toDigest) {
+            this.path = path;
+            this.fromDigest = fromDigest;
+            this.toDigest = toDigest;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package org.cclab.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.cclab.service.MerkleTree.DigestFormat;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * A MerkleTree built by walking the file tree once and spilling every
+ * completed directory to a store file, so that only the directories on the
+ * current path are kept in memory. Every file is digested as a whole, so
+ * the digests are the same as a MerkleTree with chunk size 0; files digested
+ * by chunks are not supported.
+ *
+ * The store file consists of a header holding the version of
+ * {@link DigestFormat} and the id of {@link HashFunction}, the directory records in post-order and a footer. Each record is
+ * <pre>
+ * int length, int count, count * (byte type, UTF name, 32 bytes digest, long offset)
+ * </pre>
+ * where offset is the position of the child directory record, or -1 for a
+ * file. The entries are ordered by name. The footer holds the offset of the
+ * root record and the root digest.
+ *
+ * @author Scott
+ * @see MerkleTree
+ */
+public class StreamingMerkleTree implements DigestListing, Closeable {
+    private static final int MAGIC = 0x4d4b5431; // "MKT1"
+    private static final int FOOTER_LENGTH = 8 + 32 + 4;
+    
+    private static final byte TYPE_FILE = 0;
+    private static final byte TYPE_DIRECTORY = 1;
+    
+    private final RandomAccessFile store;
+    private final DigestFormat digestFormat;
+    private final HashFunction hashFunction;
+    private final long rootOffset;
+    private final byte[] rootDigest;
+    
+    /**
+     * Open a store file written by {@link #build(File, File)}.
+     * @param storeFile the store file.
+     * @throws IOException if the store file is broken.
+     */
+    public StreamingMerkleTree(File storeFile) throws IOException {
+        this.store = new RandomAccessFile(storeFile, "r");
+        
+        try {
+            if (store.length() < 6 + FOOTER_LENGTH || store.readInt() != MAGIC) {
+                throw new IOException("Not a merkle tree store: " + storeFile);
+            }
+            
+            this.digestFormat = DigestFormat.valueOf(store.readByte());
+            this.hashFunction = HashFunction.valueOf(store.readByte());
+            
+            store.seek(store.length() - FOOTER_LENGTH);
+            
+            this.rootOffset = store.readLong();
+            this.rootDigest = new byte[32];
+            store.readFully(rootDigest);
+            
+            if (store.readInt() != MAGIC) {
+                throw new IOException("Incomplete merkle tree store: " + storeFile);
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            store.close();
+            
+            throw ex;
+        }
+    }
+    
+    /**
+     * Walk the file tree of root and write its MerkleTree into the store
+     * file with default digest format.
+     * @see #build(File, File, DigestFormat, HashFunction)
+     */
+    public static StreamingMerkleTree build(File root, File storeFile) throws IOException {
+        return build(root, storeFile, MerkleTree.DEFAULT_DIGEST_FORMAT, MerkleTree.DEFAULT_HASH_FUNCTION);
+    }
+    
+    /**
+     * Walk the file tree of root and write its MerkleTree into the store
+     * file. Directories are visited iteratively, so deep trees do not
+     * overflow the stack. Symbolic links are followed as MerkleTree does,
+     * and a link to one of its own ancestors fails the walk.
+     * @param root the root file.
+     * @param storeFile the store file to be written.
+     * @param digestFormat the directory digest format.
+     * @param hashFunction the hash function of files and directories.
+     * @return the opened StreamingMerkleTree.
+     * @throws IOException if any file cannot be read or the store file
+     *         cannot be written.
+     */
+    public static StreamingMerkleTree build(File root, File storeFile,
+                                            DigestFormat digestFormat, HashFunction hashFunction)
+        throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(storeFile))) {
+            Builder builder = new Builder(out, digestFormat, hashFunction);
+            
+            Files.walkFileTree(root.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, builder);
+            builder.finish();
+        }
+        
+        return new StreamingMerkleTree(storeFile);
+    }
+    
+    /**
+     * Returns hex string of the root digest.
+     */
+    public String getRootDigest() {
+        return HashUtils.byte2hex(rootDigest);
+    }
+    
+    @Override
+    public DigestFormat getDigestFormat() {
+        return digestFormat;
+    }
+    
+    @Override
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+    
+    /**
+     * Returns 0, as every file is digested as a whole.
+     */
+    @Override
+    public int getChunkSize() {
+        return 0;
+    }
+    
+    @Override
+    public byte[] getRootDigestBytes() {
+        return rootDigest.clone();
+    }
+    
+    @Override
+    public List<DigestListing.Entry> listDigests(String path) throws NoSuchElementException, IOException {
+        List<DigestListing.Entry> entries = new ArrayList<>();
+        
+        for (Entry entry: readRecord(locateDirectory(path))) {
+            entries.add(new DigestListing.Entry(entry.name, entry.digest, entry.offset >= 0));
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Returns hex string of the digest of the specified path.
+     * @param path names separated by File.separator, relative to root.
+     * @throws NoSuchElementException if the path does not exist.
+     * @throws IOException if the store file cannot be read.
+     */
+    public String getDigest(String path) throws NoSuchElementException, IOException {
+        List<Entry> route = locate(path);
+        
+        return route.isEmpty() ? getRootDigest() : HashUtils.byte2hex(route.get(route.size() - 1).digest);
+    }
+    
+    /**
+     * Returns the names of children of the specified directory.
+     * @throws NoSuchElementException if the path is not a directory.
+     * @throws IOException if the store file cannot be read.
+     */
+    public List<String> list(String path) throws NoSuchElementException, IOException {
+        List<String> names = new ArrayList<>();
+        
+        for (Entry entry: readRecord(locateDirectory(path))) {
+            names.add(entry.name);
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Extract the proof of the specified path. It contains the children
+     * listing of every directory from the path up to the root.
+     * @throws NoSuchElementException if the path does not exist.
+     * @throws IOException if the store file cannot be read.
+     */
+    public Proof extractProof(String path) throws NoSuchElementException, IOException {
+        List<Level> levels = new ArrayList<>();
+        long offset = rootOffset;
+        
+        for (String name: split(path)) {
+            if (offset < 0) {
+                throw new NoSuchElementException("cannot find " + name);
+            }
+            
+            List<Entry> entries = readRecord(offset);
+            int index = indexOf(entries, name);
+            String[] names = new String[entries.size()];
+            boolean[] directories = new boolean[entries.size()];
+            byte[][] digests = new byte[entries.size()][];
+            
+            for (int i = 0; i < names.length; i++) {
+                names[i] = entries.get(i).name;
+                directories[i] = entries.get(i).offset >= 0;
+                digests[i] = entries.get(i).digest;
+            }
+            
+            levels.add(new Level(names, directories, digests, index));
+            offset = entries.get(index).offset;
+        }
+        
+        Collections.reverse(levels);
+        
+        return new Proof(digestFormat, hashFunction, levels);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+    
+    private List<Entry> locate(String path) throws NoSuchElementException, IOException {
+        List<Entry> route = new ArrayList<>();
+        long offset = rootOffset;
+        
+        for (String name: split(path)) {
+            if (offset < 0) {
+                throw new NoSuchElementException("cannot find " + name);
+            }
+            
+            List<Entry> entries = readRecord(offset);
+            Entry entry = entries.get(indexOf(entries, name));
+            
+            route.add(entry);
+            offset = entry.offset;
+        }
+        
+        return route;
+    }
+    
+    private long locateDirectory(String path) throws NoSuchElementException, IOException {
+        List<Entry> route = locate(path);
+        long offset = route.isEmpty() ? rootOffset : route.get(route.size() - 1).offset;
+        
+        if (offset < 0) {
+            throw new NoSuchElementException(path + " is not a directory");
+        }
+        
+        return offset;
+    }
+    
+    private static List<String> split(String path) {
+        List<String> names = new ArrayList<>();
+        
+        for (String name: path.split(Pattern.quote(File.separator))) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        
+        return names;
+    }
+    
+    private static int indexOf(List<Entry> entries, String name) throws NoSuchElementException {
+        int lo = 0, hi = entries.size() - 1;
+        
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = entries.get(mid).name.compareTo(name);
+            
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        
+        throw new NoSuchElementException("cannot find " + name);
+    }
+    
+    private List<Entry> readRecord(long offset) throws IOException {
+        byte[] record;
+        
+        synchronized (store) {
+            store.seek(offset);
+            record = new byte[store.readInt()];
+            store.readFully(record);
+        }
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String name = in.readUTF();
+            byte[] digest = new byte[32];
+            
+            in.readFully(digest);
+            
+            long childOffset = in.readLong();
+            
+            entries.add(new Entry(name, digest, type == TYPE_DIRECTORY ? childOffset : -1));
+        }
+        
+        return entries;
+    }
+    
+    private static class Entry {
+        private final String name;
+        private final byte[] digest;
+        private final long offset;
+        
+        public Entry(String name, byte[] digest, long offset) {
+            this.name = name;
+            this.digest = digest;
+            this.offset = offset;
+        }
+    }
+    
+    /**
+     * Visits the file tree in post-order and writes one record per
+     * directory. Only the entries of directories on the current path are
+     * kept in memory.
+     */
+    private static class Builder extends SimpleFileVisitor<Path> {
+        private final OutputStream out;
+        private final DigestFormat digestFormat;
+        private final HashFunction hashFunction;
+        private final Deque<List<Entry>> path;
+        private long position;
+        private Entry root;
+        
+        public Builder(OutputStream out, DigestFormat digestFormat, HashFunction hashFunction)
+            throws IOException {
+            this.out = out;
+            this.digestFormat = digestFormat;
+            this.hashFunction = hashFunction;
+            this.path = new ArrayDeque<>();
+            
+            DataOutputStream dos = new DataOutputStream(out);
+            
+            dos.writeInt(MAGIC);
+            dos.writeByte(digestFormat.version);
+            dos.writeByte(hashFunction.id);
+            this.position = 6;
+        }
+        
+        private void add(Entry entry) {
+            if (path.isEmpty()) {
+                root = entry;
+            } else {
+                path.peek().add(entry);
+            }
+        }
+        
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            path.push(new ArrayList<>());
+            
+            return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            byte[] digest;
+            
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                digest = HashUtils.hash(hashFunction, channel, HashUtils.DEFAULT_BUFFER_SIZE);
+            }
+            
+            add(new Entry(file.getFileName().toString(), digest, -1));
+            
+            return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+            if (ex != null) {
+                throw ex;
+            }
+            
+            List<Entry> entries = path.pop();
+            
+            entries.sort((a, b) -> a.name.compareTo(b.name));
+            
+            List<String> names = new ArrayList<>(entries.size());
+            List<Boolean> directories = new ArrayList<>(entries.size());
+            List<byte[]> childDigests = new ArrayList<>(entries.size());
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(record);
+            
+            data.writeInt(entries.size());
+            
+            for (Entry entry: entries) {
+                names.add(entry.name);
+                directories.add(entry.offset >= 0);
+                childDigests.add(entry.digest);
+                
+                data.writeByte(entry.offset >= 0 ? TYPE_DIRECTORY : TYPE_FILE);
+                data.writeUTF(entry.name);
+                data.write(entry.digest);
+                data.writeLong(entry.offset);
+            }
+            
+            long offset = position;
+            DataOutputStream dos = new DataOutputStream(out);
+            
+            dos.writeInt(record.size());
+            record.writeTo(out);
+            position += 4 + record.size();
+            
+            Path name = dir.getFileName();
+            byte[] digest = MerkleTree.evalDirectoryDigest(hashFunction, digestFormat,
+                                                           names, directories, childDigests);
+            
+            add(new Entry(name == null ? "" : name.toString(), digest, offset));
+            
+            return FileVisitResult.CONTINUE;
+        }
+        
+        public void finish() throws IOException {
+            DataOutputStream dos = new DataOutputStream(out);
+            
+            dos.writeLong(root.offset);
+            dos.write(root.digest);
+            dos.writeInt(MAGIC);
+            dos.flush();
+        }
+    }
+    
+    /**
+     * One directory of a proof: the children of the directory and the index
+     * of the child on the proved path.
+     */
+    public static class Level implements Serializable {
+        private final String[] names;
+        private final boolean[] directories;
+        private final byte[][] digests;
+        private final int index;
+        
+        public Level(String[] names, boolean[] directories, byte[][] digests, int index) {
+            this.names = names;
+            this.directories = directories;
+            this.digests = digests;
+            this.index = index;
+        }
+        
+        public String[] getNames() {
+            return names;
+        }
+        
+        public boolean[] getDirectories() {
+            return directories;
+        }
+        
+        public byte[][] getDigests() {
+            return digests;
+        }
+        
+        public int getIndex() {
+            return index;
+        }
+    }
+    
+    /**
+     * The proof of a path, ordered from the parent of the path up to the
+     * root.
+     */
+    public static class Proof implements Serializable {
+        private final DigestFormat digestFormat;
+        private final HashFunction hashFunction;
+        private final List<Level> levels;
+        
+        public Proof(DigestFormat digestFormat, HashFunction hashFunction, List<Level> levels) {
+            this.digestFormat = digestFormat;
+            this.hashFunction = hashFunction;
+            this.levels = levels;
+        }
+        
+        public DigestFormat getDigestFormat() {
+            return digestFormat;
+        }
+        
+        public HashFunction getHashFunction() {
+            return hashFunction;
+        }
+        
+        public List<Level> getLevels() {
+            return levels;
+        }
+        
+        /**
+         * Evaluate the root digest from the path and its digest. Every
+         * directory must hold the name on the path with the digest of its
+         * child, and every directory above the path must be marked as one.
+         * The type of the path itself is marked in the first level. Only
+         * {@link DigestFormat#V2} digests the names, so proofs of
+         * {@link DigestFormat#V1} are rejected.
+         * @param path names separated by File.separator, relative to root.
+         * @param digest hex string of the digest of the proved path.
+         * @return hex string of the root digest.
+         * @throws VerifyError if the proof does not match the path and its
+         *         digest.
+         */
+        public String evalRootDigest(String path, String digest) {
+            if (digestFormat != DigestFormat.V2) {
+                throw new VerifyError("Digest format " + digestFormat + " does not bind names.");
+            }
+            
+            List<String> names = split(path);
+            
+            if (names.size() != levels.size()) {
+                throw new VerifyError("Depth of proof does not match the path.");
+            }
+            
+            byte[] current = HashUtils.hex2byte(digest);
+            int depth = names.size();
+            
+            for (Level level: levels) {
+                depth--;
+                
+                if (level.names.length != level.digests.length
+                    || level.names.length != level.directories.length
+                    || level.index < 0 || level.index >= level.names.length) {
+                    throw new VerifyError("Malformed level of proof.");
+                }
+                
+                for (int i = 1; i < level.names.length; i++) {
+                    if (level.names[i - 1].compareTo(level.names[i]) >= 0) {
+                        throw new VerifyError("Names of proof are not in ascending order.");
+                    }
+                }
+                
+                if (!level.names[level.index].equals(names.get(depth))) {
+                    throw new VerifyError("Names of proof do not match the path.");
+                } else if (depth < names.size() - 1 && !level.directories[level.index]) {
+                    throw new VerifyError("A directory of proof is marked as a file.");
+                }
+                
+                if (!Arrays.equals(level.digests[level.index], current)) {
+                    throw new VerifyError("Digests of proof do not match.");
+                }
+                
+                List<Boolean> directories = new ArrayList<>(level.directories.length);
+                
+                for (boolean directory: level.directories) {
+                    directories.add(directory);
+                }
+                
+                current = MerkleTree.evalDirectoryDigest(hashFunction, digestFormat,
+                                                         Arrays.asList(level.names), directories,
+                                                         Arrays.asList(level.digests));
+            }
+            
+            return HashUtils.byte2hex(current);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.cclab.utility;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Selectable hash algorithms with a reusable engine per thread, so that
+ * hashing on the hot path neither looks up the provider nor allocates a
+ * MessageDigest. All of them produce 32 bytes digests.
+ *
+ * The engine returned by {@link #engine()} is shared by the calling thread,
+ * so it must not be used across a call of another method of the same
+ * HashFunction.
+ *
+ * @author Scott
+ * @see HashUtils
+ */
+public enum HashFunction {
+    SHA256((byte) 1, "SHA-256"),
+    SHA512_256((byte) 2, "SHA-512/256"),
+    SHA3_256((byte) 3, "SHA3-256");
+    
+    public static final int DIGEST_LENGTH = 32;
+    
+    /**
+     * Identifier of this function in persisted formats.
+     */
+    public final byte id;
+    public final String algorithm;
+    
+    private final ThreadLocal<MessageDigest> engines;
+    
+    HashFunction(byte id, String algorithm) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.engines = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(algorithm + " is not supported by this JVM", ex);
+            }
+        });
+    }
+    
+    public static HashFunction valueOf(byte id) {
+        for (HashFunction function: values()) {
+            if (function.id == id) {
+                return function;
+            }
+        }
+        
+        throw new IllegalArgumentException("Unknown hash function id: " + id);
+    }
+    
+    /**
+     * Returns true if the algorithm is provided by this JVM.
+     */
+    public boolean isAvailable() {
+        try {
+            MessageDigest.getInstance(algorithm);
+            
+            return true;
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the reset engine of the calling thread.
+     * @throws IllegalStateException if the algorithm is not available.
+     */
+    public MessageDigest engine() {
+        MessageDigest md = engines.get();
+        
+        md.reset();
+        
+        return md;
+    }
+    
+    public byte[] hash(byte[]... bytesArr) {
+        MessageDigest md = engine();
+        
+        for (byte[] bytes: bytesArr) {
+            md.update(bytes);
+        }
+        
+        return md.digest();
+    }
+    
+    public byte[] hash(Iterable<byte[]> bytesCollection) {
+        MessageDigest md = engine();
+        
+        for (byte[] bytes: bytesCollection) {
+            md.update(bytes);
+        }
+        
+        return md.digest();
+    }
+    
+    /**
+     * Hash the concatenation of parts into the output array.
+     * @return the offset in output after the digest.
+     */
+    public int hash(Iterable<byte[]> parts, byte[] output, int outputOffset) {
+        MessageDigest md = engine();
+        
+        for (byte[] bytes: parts) {
+            md.update(bytes);
+        }
+        
+        return finish(md, output, outputOffset);
+    }
+    
+    /**
+     * Hash a part of the input into the output array.
+     * @return the offset in output after the digest.
+     */
+    public int hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest md = engine();
+        
+        md.update(input, offset, length);
+        
+        return finish(md, output, outputOffset);
+    }
+    
+    /**
+     * Hash the remaining bytes of the buffer into the output array. The
+     * position of buffer is moved to its limit.
+     * @return the offset in output after the digest.
+     */
+    public int hash(ByteBuffer input, byte[] output, int outputOffset) {
+        MessageDigest md = engine();
+        
+        md.update(input);
+        
+        return finish(md, output, outputOffset);
+    }
+    
+    /**
+     * Hash the concatenation of two digests into the output array.
+     * @return the offset in output after the digest.
+     */
+    public int hash(byte[] left, byte[] right, byte[] output, int outputOffset) {
+        MessageDigest md = engine();
+        
+        md.update(left);
+        md.update(right);
+        
+        return finish(md, output, outputOffset);
+    }
+    
+    /**
+     * Hash count inputs of 64 bytes, such as pairs of child digests, into
+     * count digests written one after another into output. The engine of
+     * the calling thread is fetched once for the whole batch.
+     * @param input the inputs, 64 bytes each.
+     * @param inputOffset the offset of the first input.
+     * @param output the array to write the digests into.
+     * @param outputOffset the offset of the first digest.
+     * @param count the number of inputs.
+     */
+    public void hashPairs(byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+        hashPairs(false, (byte) 0, input, inputOffset, output, outputOffset, count);
+    }
+    
+    /**
+     * Hash count inputs of 64 bytes as {@link #hashPairs(byte[], int, byte[], int, int)}
+     * does, each after the prefix byte, such as the internal node prefix of
+     * a tree separating leaves from nodes.
+     */
+    public void hashPairs(byte prefix, byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+        hashPairs(true, prefix, input, inputOffset, output, outputOffset, count);
+    }
+    
+    private void hashPairs(boolean prefixed, byte prefix, byte[] input, int inputOffset,
+                           byte[] output, int outputOffset, int count) {
+        if (inputOffset + count * 2 * DIGEST_LENGTH > input.length
+                || outputOffset + count * DIGEST_LENGTH > output.length) {
+            throw new IndexOutOfBoundsException("Input or output is shorter than " + count + " pairs.");
+        }
+        
+        MessageDigest md = engine();
+        
+        for (int i = 0; i < count; i++) {
+            if (prefixed) {
+                md.update(prefix);
+            }
+            
+            md.update(input, inputOffset + i * 2 * DIGEST_LENGTH, 2 * DIGEST_LENGTH);
+            finish(md, output, outputOffset + i * DIGEST_LENGTH);
+        }
+    }
+    
+    private static int finish(MessageDigest md, byte[] output, int outputOffset) {
+        try {
+            return outputOffset + md.digest(output, outputOffset, DIGEST_LENGTH);
+        } catch (DigestException ex) {
+            throw new IllegalArgumentException("Output is shorter than the digest.", ex);
+        }
+    }
+}
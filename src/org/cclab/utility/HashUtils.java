@@ -1,15 +1,17 @@
 package org.cclab.utility;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.bind.DatatypeConverter;
 
 /**
  *
@@ -18,75 +20,307 @@ import javax.xml.bind.DatatypeConverter;
 public class HashUtils {
     public static final Logger LOG;
     public static final char[] HEX_CHARS;
+    private static final char[] UPPER_HEX_CHARS;
+    private static final byte[] HEX_VALUES;
+    
+    /**
+     * Default size of the direct buffer used to read files.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    
+    /**
+     * Files at least this large are hashed through memory-mapped regions.
+     */
+    public static final long MAPPED_THRESHOLD = 1L << 26;
+    
+    /**
+     * Size of each memory-mapped region.
+     */
+    public static final int MAPPED_REGION_SIZE = 1 << 28;
+    
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER;
     
     static {
         LOG = Logger.getLogger(HashUtils.class.getName());
         HEX_CHARS = "0123456789abcdef".toCharArray();
+        UPPER_HEX_CHARS = "0123456789ABCDEF".toCharArray();
+        HEX_VALUES = new byte[128];
+        DIRECT_BUFFER = new ThreadLocal<>();
+        
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_CHARS[i]] = (byte) i;
+            HEX_VALUES[UPPER_HEX_CHARS[i]] = (byte) i;
+        }
     }
     
     public static String byte2hex(byte[] bytes) {
-        return byte2HEX(bytes).toLowerCase();
+        return new String(encode(bytes, 0, bytes.length, HEX_CHARS));
     }
     
     public static String byte2HEX(byte[] bytes) {
-        return DatatypeConverter.printHexBinary(bytes);
+        return new String(encode(bytes, 0, bytes.length, UPPER_HEX_CHARS));
     }
     
-    public static byte[] hex2byte(String s) {
-        return DatatypeConverter.parseHexBinary(s);
+    private static char[] encode(byte[] bytes, int offset, int length, char[] table) {
+        char[] chars = new char[length * 2];
+        
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            
+            chars[i * 2] = table[(b >> 4) & 0x0f];
+            chars[i * 2 + 1] = table[b & 0x0f];
+        }
+        
+        return chars;
     }
     
-    public static byte[] sha256(byte[]... bytesArr) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+    /**
+     * Write lower case hex characters of bytes into the output array.
+     * @return the offset in output after the written characters.
+     */
+    public static int byte2hex(byte[] bytes, int offset, int length, char[] output, int outputOffset) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = bytes[i];
             
-            for (byte[] bytes: bytesArr) {
-                md.update(bytes);
-            }
-            
-            return md.digest();
-        } catch (NoSuchAlgorithmException ex) {
-            LOG.log(Level.SEVERE, null, ex);
+            output[outputOffset++] = HEX_CHARS[(b >> 4) & 0x0f];
+            output[outputOffset++] = HEX_CHARS[b & 0x0f];
+        }
+        
+        return outputOffset;
+    }
+    
+    /**
+     * Write lower case hex characters of bytes into the output array as
+     * ASCII bytes.
+     * @return the offset in output after the written characters.
+     */
+    public static int byte2hex(byte[] bytes, int offset, int length, byte[] output, int outputOffset) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = bytes[i];
             
-            return null;
+            output[outputOffset++] = (byte) HEX_CHARS[(b >> 4) & 0x0f];
+            output[outputOffset++] = (byte) HEX_CHARS[b & 0x0f];
         }
+        
+        return outputOffset;
     }
     
-    public static byte[] sha256(Collection<byte[]> bytesCollection) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+    /**
+     * Append lower case hex characters of bytes to the builder.
+     * @return the given builder.
+     */
+    public static StringBuilder appendHex(StringBuilder sb, byte[] bytes) {
+        sb.ensureCapacity(sb.length() + bytes.length * 2);
+        
+        for (byte b: bytes) {
+            sb.append(HEX_CHARS[(b >> 4) & 0x0f]).append(HEX_CHARS[b & 0x0f]);
+        }
+        
+        return sb;
+    }
+    
+    public static byte[] hex2byte(String s) {
+        if (s.length() % 2 != 0) {
+            throw new IllegalArgumentException("hexBinary needs to be even-length: " + s);
+        }
+        
+        byte[] bytes = new byte[s.length() / 2];
+        
+        hex2byte(s, 0, s.length(), bytes, 0);
+        
+        return bytes;
+    }
+    
+    /**
+     * Decode hex characters of the specified range into the output array.
+     * Both upper and lower case characters are accepted.
+     * @return the offset in output after the decoded bytes.
+     * @throws IllegalArgumentException if any character is not hex or the
+     *         length is odd.
+     */
+    public static int hex2byte(CharSequence s, int offset, int length, byte[] output, int outputOffset) {
+        if (length % 2 != 0) {
+            throw new IllegalArgumentException("hexBinary needs to be even-length: " + length);
+        }
+        
+        for (int i = offset, end = offset + length; i < end; i += 2) {
+            int high = hexValue(s.charAt(i));
+            int low = hexValue(s.charAt(i + 1));
             
-            for (byte[] bytes: bytesCollection) {
-                md.update(bytes);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException(
+                        "contains illegal character for hexBinary: " + s.subSequence(i, i + 2));
             }
             
-            return md.digest();
-        } catch (NoSuchAlgorithmException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            
-            return null;
+            output[outputOffset++] = (byte) ((high << 4) | low);
         }
+        
+        return outputOffset;
+    }
+    
+    private static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+    
+    public static byte[] sha256(byte[]... bytesArr) {
+        return HashFunction.SHA256.hash(bytesArr);
+    }
+    
+    public static byte[] sha256(Collection<byte[]> bytesCollection) {
+        return HashFunction.SHA256.hash(bytesCollection);
+    }
+    
+    /**
+     * Hash count inputs of 64 bytes into count SHA-256 digests in one call.
+     * @see HashFunction#hashPairs(byte[], int, byte[], int, int)
+     */
+    public static void sha256Pairs(byte[] input, int inputOffset, byte[] output, int outputOffset, int count) {
+        HashFunction.SHA256.hashPairs(input, inputOffset, output, outputOffset, count);
     }
     
     public static String sha256(String data) {
-        return byte2hex(data.getBytes());
+        return byte2hex(sha256(data.getBytes(StandardCharsets.UTF_8)));
     }
     
+    /**
+     * Hash a file. Large files are hashed through memory-mapped regions and
+     * the others through a direct buffer of default size.
+     * @return hex string of the digest, or null if the file cannot be read.
+     */
     public static String sha256(File file) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            InputStream is = new FileInputStream(file);
-            byte[] buffer = new byte[8192];
-            
-            try (DigestInputStream dis = new DigestInputStream(is, md)) {
-                while (dis.read(buffer) != -1);
-            }
-
-            return byte2hex(md.digest());
+        return sha256(file, DEFAULT_BUFFER_SIZE);
+    }
+    
+    /**
+     * Hash a file with specified buffer size. Files smaller than
+     * {@link #MAPPED_THRESHOLD} are read through a direct buffer of the
+     * given size.
+     * @return hex string of the digest, or null if the file cannot be read.
+     */
+    public static String sha256(File file, int bufferSize) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return byte2hex(sha256(channel, bufferSize));
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, null, ex);
             
             return null;
         }
     }
+    
+    /**
+     * Hash the whole channel with SHA-256.
+     * @see #hash(HashFunction, FileChannel, int)
+     */
+    public static byte[] sha256(FileChannel channel, int bufferSize) throws IOException {
+        return hash(HashFunction.SHA256, channel, bufferSize);
+    }
+    
+    /**
+     * Hash a region of the channel with SHA-256.
+     * @see #hash(HashFunction, FileChannel, long, long, int)
+     */
+    public static byte[] sha256(FileChannel channel, long position, long length, int bufferSize)
+        throws IOException {
+        return hash(HashFunction.SHA256, channel, position, length, bufferSize);
+    }
+    
+    /**
+     * Hash a region of the channel with SHA-256 through memory-mapped regions.
+     * @see #hashMapped(HashFunction, FileChannel, long, long)
+     */
+    public static byte[] sha256Mapped(FileChannel channel, long position, long length)
+        throws IOException {
+        return hashMapped(HashFunction.SHA256, channel, position, length);
+    }
+    
+    /**
+     * Hash the whole channel. Channels of at least {@link #MAPPED_THRESHOLD}
+     * bytes are hashed through memory-mapped regions, the others through a
+     * direct buffer of the given size.
+     * @throws IOException if the channel cannot be read.
+     */
+    public static byte[] hash(HashFunction function, FileChannel channel, int bufferSize)
+        throws IOException {
+        long length = channel.size();
+        
+        if (length >= MAPPED_THRESHOLD) {
+            return hashMapped(function, channel, 0, length);
+        } else {
+            return hash(function, channel, 0, length, bufferSize);
+        }
+    }
+    
+    /**
+     * Hash a region of the channel through a direct buffer. The buffer is
+     * reused by the calling thread, and the position of channel is not
+     * changed.
+     * @param function the hash function.
+     * @param channel the channel to be read.
+     * @param position the first byte of the region.
+     * @param length the number of bytes of the region.
+     * @param bufferSize the size of direct buffer.
+     * @throws IOException if the region cannot be read completely.
+     */
+    public static byte[] hash(HashFunction function, FileChannel channel, long position, long length, int bufferSize)
+        throws IOException {
+        MessageDigest md = function.engine();
+        
+        update(md, channel, position, length, bufferSize);
+        
+        return md.digest();
+    }
+    
+    /**
+     * Update a digest with a region of the channel, read as by
+     * {@link #hash(HashFunction, FileChannel, long, long, int)}, so that the
+     * region can be hashed after a prefix.
+     * @throws IOException if the region cannot be read completely.
+     */
+    public static void update(MessageDigest md, FileChannel channel, long position, long length, int bufferSize)
+        throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        
+        if (buffer == null || buffer.capacity() < bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            DIRECT_BUFFER.set(buffer);
+        }
+        
+        for (long end = position + length; position < end;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(bufferSize, end - position));
+            
+            int n = channel.read(buffer, position);
+            
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            
+            buffer.flip();
+            md.update(buffer);
+            position += n;
+        }
+    }
+    
+    /**
+     * Hash a region of the channel through memory-mapped regions of
+     * {@link #MAPPED_REGION_SIZE}. The mapped regions are released when they
+     * are garbage collected.
+     * @throws IOException if the region cannot be mapped.
+     */
+    public static byte[] hashMapped(HashFunction function, FileChannel channel, long position, long length)
+        throws IOException {
+        MessageDigest md = function.engine();
+        
+        for (long end = position + length; position < end;) {
+            long size = Math.min(MAPPED_REGION_SIZE, end - position);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            
+            md.update(region);
+            position += size;
+        }
+        
+        return md.digest();
+    }
 }
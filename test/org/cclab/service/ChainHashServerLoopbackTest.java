@@ -0,0 +1,295 @@
+package org.cclab.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.cclab.Operation;
+import org.cclab.OperationType;
+import org.cclab.message.twosteps.chainhash.Acknowledgement;
+import org.cclab.message.twosteps.chainhash.Request;
+import org.cclab.utility.HashFunction;
+import org.cclab.utility.HashUtils;
+
+/**
+ * Loopback check of ChainHashServer: pipelined requests, a bad frame and a
+ * failed operation in the middle of a pipeline, and the throughput of
+ * pipelined clients. Every acknowledgement must carry its own request, and
+ * the chain must hold exactly the acknowledgements that were sent.
+ *
+ * Run with [XML|BINARY] [clients] [requests per client].
+ * @author Scott
+ */
+public class ChainHashServerLoopbackTest {
+    private static final String FAILING_PATH = "fail";
+    
+    private final ChainHashServer.Format format;
+    private final KeyPair keyPair;
+    private final List<Acknowledgement> received = new ArrayList<>();
+    
+    private ChainHashServerLoopbackTest(ChainHashServer.Format format, KeyPair keyPair) {
+        this.format = format;
+        this.keyPair = keyPair;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        ChainHashServer.Format format = args.length > 0 ? ChainHashServer.Format.valueOf(args[0])
+                                                        : ChainHashServer.Format.BINARY;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        
+        generator.initialize(2048);
+        
+        ChainHashServerLoopbackTest test = new ChainHashServerLoopbackTest(format, generator.generateKeyPair());
+        
+        try (ChainHashServer server = test.start()) {
+            int port = server.getLocalAddress().getPort();
+            
+            test.checkPipeline(port, 100);
+            test.checkBadFrame(port, 10, 10);
+            test.checkFailedOperation(port, 10, 10);
+            test.checkChain(server);
+            
+            System.out.println("pipelines, bad frame, failed operation and chain: ok");
+            
+            test.measure(port, clients, requests);
+        }
+    }
+    
+    private ChainHashServer start() throws IOException {
+        return new ChainHashServer(new InetSocketAddress("127.0.0.1", 0), keyPair, operation -> {
+            String path = operation.args.get("path");
+            
+            if (FAILING_PATH.equals(path)) {
+                throw new IllegalStateException("operation failed");
+            }
+            
+            return "ok " + path;
+        }, format, ChainHashServer.DEFAULT_MAX_FRAME_LENGTH, 16, ChainHashServer.INITIAL_CHAIN_HASH);
+    }
+    
+    /**
+     * Send count requests without waiting and check every acknowledgement.
+     */
+    private void checkPipeline(int port, int count) throws Exception {
+        List<String> paths = new ArrayList<>();
+        
+        for (int i = 0; i < count; i++) {
+            paths.add("pipeline/" + i);
+        }
+        
+        check(exchange(port, paths, null), paths, count, "pipeline");
+    }
+    
+    /**
+     * A frame which is not a request, between two runs of requests.
+     */
+    private void checkBadFrame(int port, int before, int after) throws Exception {
+        List<String> paths = new ArrayList<>();
+        
+        for (int i = 0; i < before + after; i++) {
+            paths.add("bad-frame/" + i);
+        }
+        
+        check(exchange(port, paths, before), paths, before, "bad frame");
+    }
+    
+    /**
+     * A request whose operation fails, between two runs of requests.
+     */
+    private void checkFailedOperation(int port, int before, int after) throws Exception {
+        List<String> paths = new ArrayList<>();
+        
+        for (int i = 0; i < before + after; i++) {
+            paths.add(i == before ? FAILING_PATH : "failed-operation/" + i);
+        }
+        
+        check(exchange(port, paths, null), paths, before, "failed operation");
+    }
+    
+    /**
+     * The acknowledgements must be those of the first expected requests, in
+     * order, each signed and holding its own request.
+     */
+    private void check(List<Acknowledgement> acks, List<String> paths, int expected, String name) {
+        if (acks.size() != expected) {
+            throw new IllegalStateException(name + ": " + acks.size() + " acknowledgements, expected " + expected);
+        }
+        
+        for (int i = 0; i < expected; i++) {
+            Acknowledgement ack = acks.get(i);
+            String path = ack.getRequest().getOperation().args.get("path");
+            
+            if (!paths.get(i).equals(path) || !("ok " + path).equals(ack.getResult())) {
+                throw new IllegalStateException(name + ": acknowledgement " + i + " is for " + path);
+            } else if (!ack.verifyDigitalSignature(keyPair.getPublic())) {
+                throw new IllegalStateException(name + ": acknowledgement " + i + " is not signed");
+            }
+        }
+        
+        received.addAll(acks);
+    }
+    
+    /**
+     * The received acknowledgements must form the whole chain of the server.
+     */
+    private void checkChain(ChainHashServer server) throws Exception {
+        Map<String, Acknowledgement> byLastChainHash = new HashMap<>();
+        
+        for (Acknowledgement ack: received) {
+            byLastChainHash.put(ack.getLastChainHash(), ack);
+        }
+        
+        String chainHash = ChainHashServer.INITIAL_CHAIN_HASH;
+        int length = 0;
+        
+        for (Acknowledgement ack; (ack = byLastChainHash.get(chainHash)) != null; length++) {
+            chainHash = HashUtils.byte2hex(HashFunction.SHA256.hash(ack.toXMLString().getBytes(StandardCharsets.UTF_8)));
+        }
+        
+        if (length != received.size() || length != server.getProcessedCount()) {
+            throw new IllegalStateException("chain of " + length + " acknowledgements, received " + received.size()
+                                            + ", processed " + server.getProcessedCount());
+        }
+    }
+    
+    /**
+     * Run pipelined clients at once and report the requests per second.
+     */
+    private void measure(int port, int clients, int requests) throws Exception {
+        Thread[] threads = new Thread[clients];
+        Exception[] errors = new Exception[clients];
+        long start = System.nanoTime();
+        
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            
+            threads[c] = new Thread(() -> {
+                List<String> paths = new ArrayList<>(requests);
+                
+                for (int i = 0; i < requests; i++) {
+                    paths.add("client-" + client + "/" + i);
+                }
+                
+                try {
+                    List<Acknowledgement> acks = exchange(port, paths, null);
+                    
+                    if (acks.size() != requests) {
+                        throw new IllegalStateException(acks.size() + " acknowledgements, expected " + requests);
+                    }
+                } catch (Exception ex) {
+                    errors[client] = ex;
+                }
+            });
+            threads[c].start();
+        }
+        
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        
+        for (Exception error: errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        
+        System.out.printf("%s: %d clients x %d requests in %.2f s, %.0f requests/s%n", format, clients, requests,
+                          elapsed / 1e9, clients * requests * 1e9 / elapsed);
+    }
+    
+    /**
+     * Send the requests of the paths on one connection without waiting, with
+     * a bad frame before the request at badFrame if it is not null, and read
+     * the acknowledgements until the server closes the connection.
+     */
+    private List<Acknowledgement> exchange(int port, List<String> paths, Integer badFrame) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Exception[] error = new Exception[1];
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < paths.size(); i++) {
+                        if (badFrame != null && badFrame == i) {
+                            byte[] garbage = "not a request".getBytes(StandardCharsets.UTF_8);
+                            
+                            out.writeInt(garbage.length);
+                            out.write(garbage);
+                        }
+                        
+                        byte[] bytes = encode(paths.get(i));
+                        
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (IOException ex) {
+                    // the server may close the connection before all is sent
+                    if (!socket.isClosed() && badFrame == null && !paths.contains(FAILING_PATH)) {
+                        error[0] = ex;
+                    }
+                } catch (Exception ex) {
+                    error[0] = ex;
+                }
+            });
+            List<Acknowledgement> acks = new ArrayList<>();
+            
+            writer.start();
+            
+            try {
+                while (true) {
+                    byte[] bytes = new byte[in.readInt()];
+                    
+                    in.readFully(bytes);
+                    acks.add(format == ChainHashServer.Format.XML ? Acknowledgement.read(new ByteArrayInputStream(bytes))
+                                                                  : Acknowledgement.fromBinary(bytes));
+                }
+            } catch (EOFException ex) {
+                // closed by the server
+            } catch (IOException ex) {
+                // reset by the server after a failure
+                if (badFrame == null && !paths.contains(FAILING_PATH)) {
+                    throw ex;
+                }
+            }
+            
+            writer.join();
+            
+            if (error[0] != null) {
+                throw error[0];
+            }
+            
+            return acks;
+        }
+    }
+    
+    private byte[] encode(String path) throws Exception {
+        Map<String, String> args = new LinkedHashMap<>();
+        
+        args.put("path", path);
+        
+        Request req = new Request(new Operation(OperationType.UPLOAD, args));
+        
+        return format == ChainHashServer.Format.XML ? req.toXMLString().getBytes(StandardCharsets.UTF_8)
+                                                    : req.toBinary();
+    }
+}